@@ -0,0 +1,103 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates synthetic n-gram shards for the benchmarks. Like the Google files,
+ * the lines of an n-gram are grouped together, one line per year. Most words
+ * are common English adjectives, nouns and function words, such that the
+ * constrainers and the tagger get realistic input, and the rest are
+ * capitalised words, numbers and words with punctuation that the regexes
+ * reject.
+ *
+ * @author Thomas Winters
+ *
+ */
+final class NgramBenchmarkData {
+
+	static final String[] COMMON_WORDS = { "the", "of", "and", "a", "in", "to", "is", "was", "for", "that", "with",
+			"old", "new", "good", "great", "small", "little", "long", "young", "high", "early", "important", "public",
+			"bad", "happy", "dark", "cold", "warm", "quiet", "strange", "beautiful", "red", "green", "white", "house",
+			"man", "woman", "child", "time", "year", "way", "day", "world", "life", "hand", "part", "place", "case",
+			"week", "company", "system", "program", "question", "government", "number", "night", "point", "home",
+			"water", "room", "mother", "area", "money", "story", "fact", "month", "lot", "book", "eye", "job", "word",
+			"business", "issue", "side", "kind", "head", "city", "dog", "cat", "tree", "river", "road", "garden",
+			"window", "door", "table", "letter", "ship", "song", "voice", "church", "school" };
+
+	private static final String[] OTHER_WORDS = { "London", "Paris", "John", "America", "1984", "3rd", "e-mail",
+			"don't", "U.S.", "Mr.", "_NOUN_", "(", ")", ",", "well-known", "X-ray" };
+
+	private static final int FIRST_YEAR = 1800;
+	private static final int LAST_YEAR = 2008;
+
+	private NgramBenchmarkData() {
+	}
+
+	/**
+	 * @return a random word, picked from the common words three out of four
+	 *         times
+	 */
+	static String randomWord(Random random) {
+		if (random.nextInt(4) > 0) {
+			return COMMON_WORDS[random.nextInt(COMMON_WORDS.length)];
+		}
+		return OTHER_WORDS[random.nextInt(OTHER_WORDS.length)];
+	}
+
+	/**
+	 * @return the distinct n-grams of the given size, sorted as in the Google
+	 *         files
+	 */
+	static List<String> createNgrams(int n, int amount, long seed) {
+		Random random = new Random(seed);
+		Set<String> ngrams = new TreeSet<>();
+		int attempts = 0;
+		while (ngrams.size() < amount && attempts++ < amount * 10) {
+			StringBuilder b = new StringBuilder();
+			for (int i = 0; i < n; i++) {
+				if (i > 0) {
+					b.append(' ');
+				}
+				b.append(randomWord(random));
+			}
+			// Suffix to get enough distinct n-grams from the small vocabulary
+			if (random.nextInt(3) == 0) {
+				b.append(random.nextInt(amount));
+			}
+			ngrams.add(b.toString());
+		}
+		return new ArrayList<>(ngrams);
+	}
+
+	/**
+	 * Writes a shard with the given amount of n-grams, each with a line for
+	 * <code>yearsPerNgram</code> consecutive years
+	 *
+	 * @param compressed
+	 *            whether the shard should be gzip compressed
+	 * @return the temporary shard file, deleted when the JVM exits
+	 */
+	static File createShard(int n, int amountOfNgrams, int yearsPerNgram, boolean compressed) throws IOException {
+		File file = File.createTempFile("ngram-benchmark-", compressed ? ".csv.gz" : ".csv");
+		file.deleteOnExit();
+		Random random = new Random(42);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		if (compressed) {
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			for (String ngram : createNgrams(n, amountOfNgrams, 42)) {
+				int firstYear = FIRST_YEAR + random.nextInt(LAST_YEAR - FIRST_YEAR - yearsPerNgram);
+				for (int year = firstYear; year < firstYear + yearsPerNgram; year++) {
+					int count = 1 + random.nextInt(1000);
+					writer.write(ngram + "\t" + year + "\t" + count + "\t" + (1 + count / 3) + "\n");
+				}
+			}
+		}
+		return file;
+	}
+
+}
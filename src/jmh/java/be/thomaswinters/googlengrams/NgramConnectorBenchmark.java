@@ -0,0 +1,98 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.NgramMySQLConnector.Schema;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second added by the connectors to an in-memory H2 database in MySQL
+ * mode, standing in for a MySQL server. This measures the work of the
+ * connector and the JDBC batching, not the performance of MySQL itself.
+ * Every invocation adds new n-grams, so rows are inserted rather than
+ * updated.
+ *
+ * @author Thomas Winters
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class NgramConnectorBenchmark {
+
+	private static final int ROWS = 10_000;
+	/** H2 does not accept table names starting with a digit */
+	private static final String TABLE = "benchmark2grams";
+
+	@Param({ "WORDS", "IDS" })
+	private Schema schema;
+
+	@Param({ "1", "1000" })
+	private int batchSize;
+
+	@Param({ "0", "10" })
+	private int commitEvery;
+
+	private NgramMySQLConnector connector;
+	private int next = 0;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:ngrams;MODE=MySQL");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("DROP TABLE IF EXISTS " + TABLE);
+			statement.execute("DROP TABLE IF EXISTS " + NgramMySQLIdConnector.WORDS_TABLE);
+			if (schema == Schema.IDS) {
+				statement.execute("CREATE TABLE " + NgramMySQLIdConnector.WORDS_TABLE
+						+ " (id INT AUTO_INCREMENT PRIMARY KEY, word VARCHAR(255) NOT NULL, UNIQUE KEY word (word))");
+				statement.execute("CREATE TABLE " + TABLE + " (word1_id INT NOT NULL, word2_id INT NOT NULL, "
+						+ "count BIGINT NOT NULL, PRIMARY KEY (word1_id, word2_id))");
+			} else {
+				statement.execute("CREATE TABLE " + TABLE + " (word1 VARCHAR(255) NOT NULL, "
+						+ "word2 VARCHAR(255) NOT NULL, count BIGINT NOT NULL, PRIMARY KEY (word1, word2))");
+			}
+		}
+
+		if (schema == Schema.IDS) {
+			connector = new NgramMySQLIdConnector(2, connection, batchSize, commitEvery, new HashMap<>()) {
+				@Override
+				public String getDatabaseName() {
+					return TABLE;
+				}
+			};
+		} else {
+			connector = new NgramMySQLConnector(2, connection, batchSize, commitEvery) {
+				@Override
+				public String getDatabaseName() {
+					return TABLE;
+				}
+			};
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws SQLException {
+		connector.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void addCounts() {
+		for (int i = 0; i < ROWS; i++) {
+			int id = next++;
+			// Few distinct first words, as in the n-gram files
+			String first = NgramBenchmarkData.COMMON_WORDS[id % NgramBenchmarkData.COMMON_WORDS.length];
+			List<String> words = Arrays.asList(first, "w" + id);
+			connector.addCount(words, 1 + id % 1000);
+		}
+		connector.flush();
+	}
+
+}
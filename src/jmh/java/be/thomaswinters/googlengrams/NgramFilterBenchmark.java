@@ -0,0 +1,87 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.arguments.ConstraintStringConverter;
+import be.thomaswinters.googlengrams.arguments.NgramConstraint;
+import be.thomaswinters.googlengrams.arguments.WordRegexStringConverter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per second filtered and aggregated by {@link NgramConstrainedLoader},
+ * for the 'all' and 'adjectivenoun' constrainers and the 'lowercase' regex.
+ * The lines are parsed beforehand and passed in batches, as in the pipeline,
+ * and stored n-grams are dropped. Word types of the 'adjectivenoun' constrainer
+ * are cached after the first invocation, so this measures the warm filter.
+ *
+ * @author Thomas Winters
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class NgramFilterBenchmark {
+
+	private static final int NGRAMS = 20_000;
+	private static final int YEARS_PER_NGRAM = 10;
+	private static final int LINES = NGRAMS * YEARS_PER_NGRAM;
+	private static final int BATCH_SIZE = 4096;
+
+	@Param({ "all", "lowercase", "adjectivenoun" })
+	private String filter;
+
+	@Param({ "false", "true" })
+	private boolean vocabulary;
+
+	private NgramRecord[][] batches;
+	private NgramConstrainedLoader loader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		File shard = NgramBenchmarkData.createShard(2, NGRAMS, YEARS_PER_NGRAM, false);
+		List<NgramRecord> records = new ArrayList<>(LINES);
+		new NgramCsvReader(shard).convert(record -> {
+			NgramRecord copy = new NgramRecord();
+			copy.copyFrom(record);
+			records.add(copy);
+		});
+
+		batches = new NgramRecord[(records.size() + BATCH_SIZE - 1) / BATCH_SIZE][];
+		for (int i = 0; i < batches.length; i++) {
+			List<NgramRecord> batch = records.subList(i * BATCH_SIZE, Math.min(records.size(), (i + 1) * BATCH_SIZE));
+			batches[i] = batch.toArray(new NgramRecord[batch.size()]);
+		}
+
+		NgramConstraint constraint = filter.equals("adjectivenoun")
+				? new ConstraintStringConverter().convert(filter)
+				: NgramConstraint.ALL;
+		String regex = filter.equals("lowercase") ? WordRegexStringConverter.LOWERCASE_WORDS
+				: WordRegexStringConverter.ALL;
+		loader = new NgramConstrainedLoader(new NgramCsvReader(shard), new NgramCountingSink(), 1800,
+				2008, 40, constraint, regex);
+		if (vocabulary) {
+			NgramVocabulary words = new NgramVocabulary();
+			words.collect(new NgramCsvReader(shard), year -> true);
+			words.classify(WordPattern.compile(regex), constraint);
+			loader.setVocabulary(words);
+		}
+		shard.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void filter() {
+		for (NgramRecord[] batch : batches) {
+			loader.prepare(batch, batch.length);
+			for (NgramRecord record : batch) {
+				loader.store(record);
+			}
+		}
+		loader.endStoring();
+	}
+
+}
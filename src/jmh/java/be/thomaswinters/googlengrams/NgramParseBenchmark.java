@@ -0,0 +1,56 @@
+package be.thomaswinters.googlengrams;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per second parsed by {@link NgramCsvReader} from a synthetic shard,
+ * both memory-mapped and gzip compressed.
+ *
+ * @author Thomas Winters
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class NgramParseBenchmark {
+
+	private static final int NGRAMS = 20_000;
+	private static final int YEARS_PER_NGRAM = 10;
+	private static final int LINES = NGRAMS * YEARS_PER_NGRAM;
+
+	@Param({ "false", "true" })
+	private boolean compressed;
+
+	@Param({ "all", "1900-1950" })
+	private String years;
+
+	private File shard;
+
+	@Setup(Level.Trial)
+	public void createShard() throws IOException {
+		shard = NgramBenchmarkData.createShard(3, NGRAMS, YEARS_PER_NGRAM, compressed);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteShard() {
+		shard.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void parse(Blackhole blackhole) {
+		NgramCsvReader reader = new NgramCsvReader(shard);
+		if (years.equals("all")) {
+			reader.convert(record -> blackhole.consume(record.getCount()));
+		} else {
+			// Lines of other years are skipped before their words are decoded
+			reader.convert(year -> year >= 1900 && year <= 1950, record -> blackhole.consume(record.getCount()));
+		}
+	}
+
+}
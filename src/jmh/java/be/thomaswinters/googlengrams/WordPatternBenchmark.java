@@ -0,0 +1,88 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.arguments.WordRegexStringConverter;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Words per second checked by a {@link Pattern} and by the compiled
+ * {@link WordPattern}, on strings and on UTF-8 bytes, for every regex shortcut,
+ * a character class with a non-ASCII range and a regex that is not compiled.
+ *
+ * @author Thomas Winters
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class WordPatternBenchmark {
+
+	private static final int WORDS = 100_000;
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ-'0123456789\u00e9\u00fc";
+
+	@Param({ "all", "allwords", "lowercase", "^[a-z\u00e0-\u00ff]+$", "^[a-z]+('[a-z]+)?$" })
+	private String regex;
+
+	private String[] words;
+	private byte[][] bytes;
+	private Matcher matcher;
+	private WordPattern pattern;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		words = new String[WORDS];
+		bytes = new byte[WORDS][];
+		for (int i = 0; i < WORDS; i++) {
+			StringBuilder b = new StringBuilder();
+			int length = 1 + random.nextInt(12);
+			// Most words are lowercase, as in the n-gram files
+			boolean lowercase = random.nextInt(4) > 0;
+			for (int j = 0; j < length; j++) {
+				b.append(lowercase ? (char) ('a' + random.nextInt(26)) : ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			words[i] = b.toString();
+			bytes[i] = words[i].getBytes(StandardCharsets.UTF_8);
+		}
+
+		String converted = new WordRegexStringConverter().convert(regex);
+		matcher = Pattern.compile(converted).matcher("");
+		pattern = WordPattern.compile(converted);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public int regex() {
+		int matches = 0;
+		for (String word : words) {
+			matches += matcher.reset(word).matches() ? 1 : 0;
+		}
+		return matches;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public int compiledChars() {
+		int matches = 0;
+		for (String word : words) {
+			matches += pattern.matches(word) ? 1 : 0;
+		}
+		return matches;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public int compiledBytes() {
+		int matches = 0;
+		for (byte[] word : bytes) {
+			matches += pattern.matches(word, 0, word.length) ? 1 : 0;
+		}
+		return matches;
+	}
+
+}
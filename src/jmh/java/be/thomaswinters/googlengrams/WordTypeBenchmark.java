@@ -0,0 +1,76 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.arguments.ConstraintStringConverter;
+import be.thomaswinters.pos.PosLexicon;
+import be.thomaswinters.pos.WordTypeCalculator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Words per second looked up by {@link WordTypeCalculator#getWordTypes(String)},
+ * with a cache that is emptied before every invocation (cold) or that already
+ * contains every word (warm). A lexicon built by {@link NgramPosLexiconBuilder}
+ * can be passed using <code>-p posLexicon=...</code>, such that cold lookups
+ * use it instead of tagging.
+ *
+ * @author Thomas Winters
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class WordTypeBenchmark {
+
+	private static final int WORDS = 500;
+
+	@Param({ "cold", "warm" })
+	private String cache;
+
+	@Param({ "" })
+	private String posLexicon;
+
+	private WordTypeCalculator calculator;
+	private String[] words;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		calculator = ConstraintStringConverter.getWordTypeCalculator();
+		if (!posLexicon.isEmpty()) {
+			calculator.setLexicon(PosLexicon.open(new File(posLexicon)));
+		}
+
+		Random random = new Random(42);
+		Set<String> distinct = new LinkedHashSet<>();
+		while (distinct.size() < WORDS) {
+			String word = NgramBenchmarkData.randomWord(random);
+			distinct.add(distinct.contains(word) ? word + distinct.size() : word);
+		}
+		words = distinct.toArray(new String[WORDS]);
+		for (String word : words) {
+			calculator.getWordTypes(word);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void clearCache() {
+		if (cache.equals("cold")) {
+			calculator.clearCache();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WORDS)
+	public void getWordTypes(Blackhole blackhole) {
+		for (String word : words) {
+			blackhole.consume(calculator.getWordTypes(word));
+		}
+	}
+
+}
@@ -0,0 +1,621 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sums the counts of n-grams regardless of the order in which their lines
+ * arrive. Counts are collected in an open-addressing hash table keyed on the
+ * UTF-8 bytes of the n-gram. When the table exceeds its memory budget, it is
+ * written to disk as a run sorted on the key, and at the end all runs are
+ * merged such that every n-gram is passed on exactly once with its total
+ * count.
+ *
+ * When years are kept, the year is appended to the key, such that every
+ * n-gram is passed on once per year instead. All years of an n-gram are then
+ * passed on directly after each other, as the keys only differ in their last
+ * bytes.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramAggregator implements AutoCloseable {
+
+	/**
+	 * Separates the words in a key. As it is below every byte of a word, the
+	 * keys sort like their words compared one by one, also for words with
+	 * control characters.
+	 */
+	private static final byte KEY_SEPARATOR = 0;
+	private static final int YEAR_BYTES = 4;
+	private static final int EMPTY = -1;
+	private static final int MAX_MERGE_FAN_IN = 64;
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+	private static final int INSERTION_SORT_SIZE = 16;
+	/** Largest length of an array that can be allocated */
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+	/** Largest amount of entries, such that the hash table stays an array */
+	private static final int MAX_ENTRIES = 1 << 29;
+	/**
+	 * Largest memory budget, as all keys are kept in one array. Larger budgets
+	 * would spill once the key array is full anyway.
+	 */
+	public static final long MAX_MEMORY = MAX_ARRAY_LENGTH;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final long maxMemory;
+	private final File spillFolder;
+	private final boolean keepingYears;
+
+	private byte[] keys = new byte[1 << 16];
+	private int keysLength = 0;
+	private int[] offsets = new int[1 << 10];
+	private int[] hashes = new int[1 << 10];
+	private long[] counts = new long[1 << 10];
+	private int size = 0;
+	private int[] table = newTable(1 << 11);
+
+	private byte[] key = new byte[256];
+	private final NgramRecord emitted = new NgramRecord();
+	private final List<File> runs = new ArrayList<>();
+	private long spilledEntries = 0;
+
+	/*-********************************************-*/
+
+	/**
+	 * @param maxMemory
+	 *            amount of bytes the hash table may use before it is spilled
+	 * @param spillFolder
+	 *            folder to write the sorted runs to
+	 * @param keepingYears
+	 *            whether the counts of every year are summed separately
+	 */
+	public NgramAggregator(long maxMemory, File spillFolder, boolean keepingYears) {
+		this.maxMemory = maxMemory;
+		this.spillFolder = spillFolder;
+		this.keepingYears = keepingYears;
+	}
+
+	public NgramAggregator(long maxMemory, File spillFolder) {
+		this(maxMemory, spillFolder, false);
+	}
+
+	/*-********************************************-*
+	 *  Adding
+	*-********************************************-*/
+
+	/**
+	 * Adds the count of the record to the total of its n-gram
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a word contains a NUL byte, which separates the words
+	 */
+	public void add(NgramRecord record) {
+		int length = 0;
+		byte[] bytes = record.getBytes();
+		for (int i = 0; i < record.size(); i++) {
+			int start = record.getWordStart(i);
+			int wordLength = record.getWordEnd(i) - start;
+			if (key.length < length + wordLength + 1) {
+				key = Arrays.copyOf(key, grow(key.length, (long) length + wordLength + 1));
+			}
+			if (i > 0) {
+				key[length++] = KEY_SEPARATOR;
+			}
+			System.arraycopy(bytes, start, key, length, wordLength);
+			checkWord(key, length, wordLength);
+			length += wordLength;
+		}
+		if (keepingYears) {
+			if (key.length < length + 1 + YEAR_BYTES) {
+				key = Arrays.copyOf(key, grow(key.length, (long) length + 1 + YEAR_BYTES));
+			}
+			// Big-endian, such that the years of an n-gram are sorted
+			key[length++] = KEY_SEPARATOR;
+			int year = record.getYear();
+			for (int i = YEAR_BYTES - 1; i >= 0; i--) {
+				key[length++] = (byte) (year >>> (8 * i));
+			}
+		}
+		add(key, length, record.getCount());
+	}
+
+	/**
+	 * Adds the count to the total of the n-gram with the given words. Only
+	 * possible if the years are not kept.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a word contains a NUL character, which separates the words
+	 */
+	public void add(List<String> words, long count) {
+		if (keepingYears) {
+			throw new IllegalStateException("N-grams without a year can not be added when years are kept");
+		}
+		int length = 0;
+		for (int i = 0; i < words.size(); i++) {
+			byte[] word = words.get(i).getBytes(StandardCharsets.UTF_8);
+			if (key.length < length + word.length + 1) {
+				key = Arrays.copyOf(key, grow(key.length, (long) length + word.length + 1));
+			}
+			if (i > 0) {
+				key[length++] = KEY_SEPARATOR;
+			}
+			System.arraycopy(word, 0, key, length, word.length);
+			checkWord(key, length, word.length);
+			length += word.length;
+		}
+		add(key, length, count);
+	}
+
+	private static void checkWord(byte[] bytes, int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			if (bytes[i] == KEY_SEPARATOR) {
+				throw new IllegalArgumentException("Words can not contain a NUL character: "
+						+ new String(bytes, start, length, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private void add(byte[] source, int length, long count) {
+		if ((long) keysLength + length > MAX_ARRAY_LENGTH || size >= MAX_ENTRIES) {
+			spill();
+		}
+		int hash = hash(source, length);
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != EMPTY) {
+			int id = table[slot];
+			if (hashes[id] == hash && equals(id, source, length)) {
+				counts[id] += count;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (keys.length < keysLength + length) {
+			keys = Arrays.copyOf(keys, grow(keys.length, (long) keysLength + length));
+		}
+		System.arraycopy(source, 0, keys, keysLength, length);
+		if (size + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			counts = Arrays.copyOf(counts, counts.length * 2);
+		}
+		int id = size++;
+		offsets[id] = keysLength;
+		keysLength += length;
+		offsets[size] = keysLength;
+		hashes[id] = hash;
+		counts[id] = count;
+		table[slot] = id;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		if (getMemoryUsage() > maxMemory) {
+			spill();
+		}
+	}
+
+	private void rehash(int capacity) {
+		table = newTable(capacity);
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id;
+		}
+	}
+
+	/**
+	 * @return the length to grow an array to such that it holds the required
+	 *         length: twice its current length, without overflowing
+	 */
+	private static int grow(int length, long required) {
+		if (required > MAX_ARRAY_LENGTH) {
+			throw new OutOfMemoryError("Can not grow an array to " + required + " elements");
+		}
+		return (int) Math.min(MAX_ARRAY_LENGTH, Math.max(2L * length, required));
+	}
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[capacity];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	/**
+	 * @return the estimated amount of bytes used by the entries in the table: the
+	 *         key bytes, the offset, hash and count, at least two slots of the
+	 *         hash table, and the id sorted when spilling per entry
+	 */
+	public long getMemoryUsage() {
+		return keysLength + 28L * size;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Spilling
+	*-********************************************-*/
+
+	/**
+	 * Writes all n-grams in the table sorted to a new run, and empties the table
+	 */
+	private void spill() {
+		try {
+			File run = File.createTempFile("ngram-run-", ".bin", spillFolder);
+			run.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+				for (int id : sortedIds()) {
+					writeEntry(out, keys, offsets[id], offsets[id + 1] - offsets[id], counts[id]);
+				}
+			}
+			runs.add(run);
+			spilledEntries += size;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		clearTable();
+	}
+
+	private void clearTable() {
+		size = 0;
+		keysLength = 0;
+		Arrays.fill(table, EMPTY);
+	}
+
+	/**
+	 * @return the ids of all entries, sorted on their keys
+	 */
+	private int[] sortedIds() {
+		int[] ids = new int[size];
+		for (int i = 0; i < size; i++) {
+			ids[i] = i;
+		}
+		sort(ids, 0, size - 1);
+		return ids;
+	}
+
+	/**
+	 * Quicksorts the ids in the inclusive range on their keys, recursing into the
+	 * smaller part only, and insertion sorting small ranges
+	 */
+	private void sort(int[] ids, int from, int to) {
+		while (to - from > INSERTION_SORT_SIZE) {
+			int middle = (from + to) >>> 1;
+			// Median of three as pivot, such that sorted input is not quadratic
+			if (compareIds(ids[middle], ids[from]) < 0) {
+				swap(ids, middle, from);
+			}
+			if (compareIds(ids[to], ids[from]) < 0) {
+				swap(ids, to, from);
+			}
+			if (compareIds(ids[to], ids[middle]) < 0) {
+				swap(ids, to, middle);
+			}
+			int pivot = ids[middle];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (compareIds(ids[i], pivot) < 0) {
+					i++;
+				}
+				while (compareIds(ids[j], pivot) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(ids, i++, j--);
+				}
+			}
+			if (j - from < to - i) {
+				sort(ids, from, j);
+				from = i;
+			} else {
+				sort(ids, i, to);
+				to = j;
+			}
+		}
+		for (int i = from + 1; i <= to; i++) {
+			int id = ids[i];
+			int j = i - 1;
+			while (j >= from && compareIds(ids[j], id) > 0) {
+				ids[j + 1] = ids[j];
+				j--;
+			}
+			ids[j + 1] = id;
+		}
+	}
+
+	private int compareIds(int a, int b) {
+		return compare(keys, offsets[a], offsets[a + 1], keys, offsets[b], offsets[b + 1]);
+	}
+
+	private static void swap(int[] ids, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+
+	/**
+	 * Spills the n-grams of the other aggregator and takes over all its runs,
+	 * such that they are merged with the n-grams of this aggregator when it is
+	 * finished. Can be called by several threads, each with their own other
+	 * aggregator. The other aggregator is empty afterwards.
+	 *
+	 * @param other
+	 *            aggregator keeping years if and only if this one does
+	 */
+	public void addRuns(NgramAggregator other) {
+		if (other.keepingYears != keepingYears) {
+			throw new IllegalArgumentException("Only runs with the same kind of keys can be merged");
+		}
+		if (other.size > 0) {
+			other.spill();
+		}
+		synchronized (runs) {
+			runs.addAll(other.runs);
+			spilledEntries += other.spilledEntries;
+		}
+		other.runs.clear();
+		other.spilledEntries = 0;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Emitting
+	*-********************************************-*/
+
+	/**
+	 * Passes every n-gram with its total count to the consumer, sorted on the
+	 * UTF-8 bytes of the words. When years are kept, the n-gram is passed on
+	 * once for every year, in increasing order of the years. The aggregator is
+	 * empty afterwards.
+	 *
+	 * @param consumer
+	 */
+	public void finish(NgramRecordConsumer consumer) {
+		if (runs.isEmpty()) {
+			for (int id : sortedIds()) {
+				emit(keys, offsets[id], offsets[id + 1] - offsets[id], counts[id], consumer);
+			}
+			clearTable();
+			return;
+		}
+
+		if (size > 0) {
+			spill();
+		}
+		try {
+			reduceRuns();
+			merge(runs, (bytes, length, count) -> emit(bytes, 0, length, count, consumer));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Writes every n-gram with its total count to the given file as a single
+	 * sorted run, in the same layout as the spilled runs. The aggregator is empty
+	 * afterwards.
+	 *
+	 * @param file
+	 */
+	public void finish(File file) throws IOException {
+		if (size > 0) {
+			spill();
+		}
+		try {
+			reduceRuns();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE))) {
+				merge(runs, (bytes, length, count) -> writeEntry(out, bytes, 0, length, count));
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Merges groups of runs until at most {@value #MAX_MERGE_FAN_IN} runs are
+	 * left, such that they can be merged at once
+	 */
+	private void reduceRuns() throws IOException {
+		while (runs.size() > MAX_MERGE_FAN_IN) {
+			List<File> group = new ArrayList<>(runs.subList(0, MAX_MERGE_FAN_IN));
+			runs.removeAll(group);
+			File merged = File.createTempFile("ngram-run-", ".bin", spillFolder);
+			merged.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(merged), IO_BUFFER_SIZE))) {
+				merge(group, (bytes, length, count) -> writeEntry(out, bytes, 0, length, count));
+			}
+			group.forEach(File::delete);
+			runs.add(merged);
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, byte[] bytes, int start, int length, long count)
+			throws IOException {
+		out.writeInt(length);
+		out.write(bytes, start, length);
+		out.writeLong(count);
+	}
+
+	private void emit(byte[] bytes, int start, int length, long count, NgramRecordConsumer consumer) {
+		if (keepingYears) {
+			int year = 0;
+			for (int i = start + length - YEAR_BYTES; i < start + length; i++) {
+				year = (year << 8) | (bytes[i] & 0xFF);
+			}
+			emitted.setYear(year);
+			length -= YEAR_BYTES + 1;
+		}
+		emitted.setWords(ByteBuffer.wrap(bytes), start, start + length, KEY_SEPARATOR);
+		emitted.setCount(count);
+		consumer.accept(emitted);
+	}
+
+	/**
+	 * Merges the sorted runs, summing the counts of equal keys
+	 */
+	private static void merge(List<File> runs, EntryConsumer consumer) throws IOException {
+		PriorityQueue<RunReader> heap = new PriorityQueue<>(Math.max(1, runs.size()),
+				(a, b) -> compare(a.key, 0, a.length, b.key, 0, b.length));
+		try {
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				if (reader.next()) {
+					heap.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+
+			byte[] current = new byte[256];
+			int currentLength = -1;
+			long total = 0;
+			while (!heap.isEmpty()) {
+				RunReader reader = heap.poll();
+				if (currentLength >= 0 && compare(current, 0, currentLength, reader.key, 0, reader.length) == 0) {
+					total += reader.count;
+				} else {
+					if (currentLength >= 0) {
+						consumer.accept(current, currentLength, total);
+					}
+					if (current.length < reader.length) {
+						current = new byte[reader.key.length];
+					}
+					System.arraycopy(reader.key, 0, current, 0, reader.length);
+					currentLength = reader.length;
+					total = reader.count;
+				}
+				if (reader.next()) {
+					heap.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			if (currentLength >= 0) {
+				consumer.accept(current, currentLength, total);
+			}
+		} finally {
+			for (RunReader reader : heap) {
+				reader.close();
+			}
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	/**
+	 * @return the amount of sorted runs written to disk
+	 */
+	public int getAmountOfRuns() {
+		return runs.size();
+	}
+
+	public long getSpilledEntries() {
+		return spilledEntries;
+	}
+
+	/**
+	 * Deletes all runs written to disk
+	 */
+	@Override
+	public void close() {
+		runs.forEach(File::delete);
+		runs.clear();
+	}
+
+	private boolean equals(int id, byte[] source, int length) {
+		int offset = offsets[id];
+		if (offsets[id + 1] - offset != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (keys[offset + i] != source[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] source, int length) {
+		// FNV-1a, with the bits spread for the power of two table
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ source[i]) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+		int length = Math.min(aEnd - aStart, bEnd - bStart);
+		for (int i = 0; i < length; i++) {
+			int comparison = Integer.compare(a[aStart + i] & 0xFF, b[bStart + i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(aEnd - aStart, bEnd - bStart);
+	}
+
+	@FunctionalInterface
+	private interface EntryConsumer {
+		void accept(byte[] key, int length, long count) throws IOException;
+	}
+
+	/**
+	 * Reads the entries of a sorted run one by one
+	 */
+	private static class RunReader implements Closeable {
+		private final DataInputStream in;
+		private byte[] key = new byte[256];
+		private int length;
+		private long count;
+
+		RunReader(File run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+		}
+
+		boolean next() throws IOException {
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			if (key.length < length) {
+				key = new byte[Math.max(length, key.length * 2)];
+			}
+			in.readFully(key, 0, length);
+			count = in.readLong();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/*-********************************************-*/
+
+}
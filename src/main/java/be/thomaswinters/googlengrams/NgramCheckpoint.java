@@ -0,0 +1,161 @@
+package be.thomaswinters.googlengrams;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Progress of loading a file into an n-gram table, stored in the
+ * <code>ngram_progress</code> table. Every checkpoint records the offset in the
+ * file from which loading can continue, which is the start of the first n-gram
+ * that is not committed yet, together with the last committed n-gram. It is
+ * written in the same transaction as the rows it covers.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramCheckpoint {
+
+	public static final String PROGRESS_TABLE = "ngram_progress";
+	private static final int MAX_NGRAM_LENGTH = 1024;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final Connection connection;
+	private final String tableName;
+	private final String fileName;
+
+	private final long startOffset;
+	private final boolean finished;
+
+	private long offset;
+	private String lastNgram;
+	private PreparedStatement saveStatement;
+
+	/*-********************************************-*/
+
+	private NgramCheckpoint(Connection connection, String tableName, String fileName, long startOffset,
+			String lastNgram, boolean finished) {
+		this.connection = connection;
+		this.tableName = tableName;
+		this.fileName = fileName;
+		this.startOffset = startOffset;
+		this.offset = startOffset;
+		this.lastNgram = lastNgram;
+		this.finished = finished;
+	}
+
+	public static void createTable(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE + " ("
+					+ "table_name VARCHAR(64) NOT NULL, file VARCHAR(255) NOT NULL, "
+					+ "byte_offset BIGINT NOT NULL, last_ngram VARCHAR(" + MAX_NGRAM_LENGTH + "), "
+					+ "finished BOOLEAN NOT NULL DEFAULT FALSE, "
+					+ "updated TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+					+ "PRIMARY KEY (table_name, file)) ENGINE=InnoDB");
+		}
+	}
+
+	/**
+	 * Reads the progress of loading the file into the given table, which is
+	 * empty if the file was never loaded before
+	 */
+	public static NgramCheckpoint load(Connection connection, String tableName, String fileName)
+			throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT byte_offset, last_ngram, finished FROM "
+				+ PROGRESS_TABLE + " WHERE table_name = ? AND file = ?")) {
+			statement.setString(1, tableName);
+			statement.setString(2, fileName);
+			try (ResultSet result = statement.executeQuery()) {
+				if (result.next()) {
+					return new NgramCheckpoint(connection, tableName, fileName, result.getLong(1),
+							result.getString(2), result.getBoolean(3));
+				}
+				return new NgramCheckpoint(connection, tableName, fileName, 0, null, false);
+			}
+		}
+	}
+
+	/*-********************************************-*
+	 *  Progress
+	*-********************************************-*/
+
+	/**
+	 * Moves the checkpoint past the given n-gram, such that loading continues
+	 * from the given offset
+	 */
+	void advance(long offset, List<String> ngram) {
+		this.offset = offset;
+		this.lastNgram = String.join(" ", ngram);
+	}
+
+	/**
+	 * Writes the checkpoint without committing, such that it is committed
+	 * together with the rows it covers
+	 */
+	void save() throws SQLException {
+		save(false);
+	}
+
+	/**
+	 * Writes that the whole file is loaded
+	 */
+	void saveFinished() throws SQLException {
+		save(true);
+	}
+
+	private void save(boolean finished) throws SQLException {
+		if (saveStatement == null) {
+			saveStatement = connection.prepareStatement("INSERT INTO " + PROGRESS_TABLE
+					+ " (table_name, file, byte_offset, last_ngram, finished) VALUES (?, ?, ?, ?, ?)"
+					+ " ON DUPLICATE KEY UPDATE byte_offset = VALUES(byte_offset),"
+					+ " last_ngram = VALUES(last_ngram), finished = VALUES(finished)");
+		}
+		saveStatement.setString(1, tableName);
+		saveStatement.setString(2, fileName);
+		saveStatement.setLong(3, offset);
+		saveStatement.setString(4, lastNgram == null || lastNgram.length() <= MAX_NGRAM_LENGTH ? lastNgram
+				: lastNgram.substring(0, MAX_NGRAM_LENGTH));
+		saveStatement.setBoolean(5, finished);
+		saveStatement.executeUpdate();
+	}
+
+	void close() throws SQLException {
+		if (saveStatement != null) {
+			saveStatement.close();
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	/**
+	 * @return the offset in the file to continue loading from
+	 */
+	public long getStartOffset() {
+		return startOffset;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public String getLastNgram() {
+		return lastNgram;
+	}
+
+	@Override
+	public String toString() {
+		return fileName + " into " + tableName + (finished ? " finished" : " at byte " + offset + " after '" + lastNgram + "'");
+	}
+
+	/*-********************************************-*/
+
+}
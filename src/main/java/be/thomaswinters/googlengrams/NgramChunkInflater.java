@@ -0,0 +1,197 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Decompresses an n-gram shard on its own thread, handing filled buffers to
+ * the parsing thread. Buffers are recycled, so the amount of memory used is
+ * bounded by the amount of buffers.
+ *
+ * @author Thomas Winters
+ *
+ */
+class NgramChunkInflater implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 1 << 22;
+	private static final int BUFFER_COUNT = 4;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/**
+	 * Supported compression formats of shard files
+	 */
+	enum Compression {
+		NONE, GZIP, ZIP;
+
+		/**
+		 * Detects the compression of the file by its magic bytes, or by its
+		 * extension if the file is too short to contain them
+		 */
+		static Compression detect(File file) throws IOException {
+			byte[] magic = new byte[4];
+			int read;
+			try (InputStream in = new FileInputStream(file)) {
+				read = in.read(magic);
+			}
+			if (read >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+				return GZIP;
+			}
+			if (read >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+				return ZIP;
+			}
+			if (read < 4) {
+				String name = file.getName().toLowerCase();
+				if (name.endsWith(".gz")) {
+					return GZIP;
+				}
+				if (name.endsWith(".zip")) {
+					return ZIP;
+				}
+			}
+			return NONE;
+		}
+	}
+
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+	private final Thread thread;
+	private volatile IOException failure;
+	private volatile long bytesRead = 0;
+
+	NgramChunkInflater(File file, Compression compression) {
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+		this.thread = new Thread(() -> inflate(file, compression), "ngram-inflater-" + file.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	private void inflate(File file, Compression compression) {
+		try (InputStream raw = new CountingInputStream(new FileInputStream(file))) {
+			if (compression == Compression.ZIP) {
+				try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(raw, BUFFER_SIZE))) {
+					while (zip.getNextEntry() != null) {
+						copy(zip);
+						// Entries do not necessarily end with a newline
+						hand(ByteBuffer.wrap(new byte[] { '\n' }));
+					}
+				}
+			} else {
+				try (InputStream in = compression == Compression.GZIP ? new GZIPInputStream(raw, BUFFER_SIZE)
+						: new BufferedInputStream(raw, BUFFER_SIZE)) {
+					copy(in);
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			// Parser stopped reading
+			return;
+		}
+		try {
+			filled.put(END);
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	private void copy(InputStream in) throws IOException, InterruptedException {
+		while (true) {
+			ByteBuffer buffer = free.take();
+			buffer.clear();
+			byte[] array = buffer.array();
+			int position = 0;
+			int read = 0;
+			while (position < array.length && (read = in.read(array, position, array.length - position)) >= 0) {
+				position += read;
+			}
+			buffer.limit(position);
+			hand(buffer);
+			if (read < 0) {
+				return;
+			}
+		}
+	}
+
+	private void hand(ByteBuffer buffer) throws InterruptedException {
+		if (buffer.hasRemaining()) {
+			filled.put(buffer);
+		} else if (buffer.capacity() == BUFFER_SIZE) {
+			free.put(buffer);
+		}
+	}
+
+	/**
+	 * @return the amount of compressed bytes of the file read so far
+	 */
+	long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the next filled buffer, or null at the end of the file
+	 */
+	ByteBuffer next() throws IOException {
+		ByteBuffer buffer;
+		try {
+			buffer = filled.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+		}
+		if (buffer == END) {
+			if (failure != null) {
+				throw failure;
+			}
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer returned by {@link #next()} back for reuse
+	 */
+	void recycle(ByteBuffer buffer) {
+		if (buffer.capacity() == BUFFER_SIZE) {
+			free.offer(buffer);
+		}
+	}
+
+	@Override
+	public void close() {
+		thread.interrupt();
+	}
+
+	/**
+	 * Counts the bytes read from the file, for reporting progress
+	 */
+	private class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				bytesRead += read;
+			}
+			return read;
+		}
+	}
+
+}
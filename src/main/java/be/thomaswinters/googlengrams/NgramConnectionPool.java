@@ -0,0 +1,155 @@
+package be.thomaswinters.googlengrams;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded pool of MySQL connections that can be shared by several loaders.
+ * Connections handed out by the pool return to the pool when they are closed,
+ * so they can be given to an {@link NgramMySQLConnector} as if they were
+ * ordinary connections.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramConnectionPool implements AutoCloseable {
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final String host;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final String databaseName;
+
+	private final BlockingQueue<Connection> idle;
+	private final List<Connection> all;
+	private final int size;
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Constructor
+	*-********************************************-*/
+	public NgramConnectionPool(int size, String host, int port, String username, String password,
+			String databaseName) {
+		this.size = Math.max(1, size);
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.databaseName = databaseName;
+		this.idle = new ArrayBlockingQueue<>(this.size);
+		this.all = new ArrayList<>(this.size);
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Acquiring & releasing
+	*-********************************************-*/
+
+	/**
+	 * Takes a connection from the pool, opening a new one if the pool has not
+	 * reached its size yet, or waiting for one to be released otherwise. Closing
+	 * the returned connection releases it back into the pool.
+	 *
+	 * @return
+	 */
+	public Connection acquire() throws ClassNotFoundException, URISyntaxException, SQLException {
+		while (true) {
+			Connection connection = idle.poll();
+			if (connection == null) {
+				synchronized (all) {
+					if (all.size() < size) {
+						connection = NgramMySQLConnector.createConnection(host, port, username, password,
+								databaseName);
+						all.add(connection);
+					}
+				}
+			}
+			if (connection == null) {
+				try {
+					// Time out regularly in case a broken connection made room for a new one
+					connection = idle.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection", e);
+				}
+			}
+			if (connection != null) {
+				return wrap(connection);
+			}
+		}
+	}
+
+	private void release(Connection connection) throws SQLException {
+		try {
+			// Throw away uncommitted work of failed loaders
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			// Broken connection: make room for a new one
+			synchronized (all) {
+				all.remove(connection);
+			}
+			connection.close();
+			throw e;
+		}
+		idle.add(connection);
+	}
+
+	private Connection wrap(Connection connection) {
+		AtomicBoolean released = new AtomicBoolean(false);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "close":
+						if (released.compareAndSet(false, true)) {
+							release(connection);
+						}
+						return null;
+					case "isClosed":
+						return released.get() || connection.isClosed();
+					default:
+						if (released.get()) {
+							throw new SQLException("Connection has been released to the pool");
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	/*-********************************************-*/
+
+	@Override
+	public void close() throws SQLException {
+		synchronized (all) {
+			for (Connection connection : all) {
+				connection.close();
+			}
+			all.clear();
+			idle.clear();
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+}
@@ -1,15 +1,33 @@
 package be.thomaswinters.googlengrams;
 
+import be.thomaswinters.googlengrams.NgramLoadMetrics.Reject;
+import be.thomaswinters.googlengrams.NgramMySQLConnector.Schema;
 import be.thomaswinters.googlengrams.arguments.ConstrainedLoaderArguments;
+import be.thomaswinters.googlengrams.arguments.ConstraintStringConverter;
+import be.thomaswinters.googlengrams.arguments.NgramConstraint;
+import be.thomaswinters.googlengrams.arguments.WordTypeConstraint;
+import be.thomaswinters.pos.PosLexicon;
 import com.beust.jcommander.JCommander;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
-import java.util.regex.Pattern;
+import java.util.function.IntPredicate;
 
 
 /**
@@ -19,48 +37,686 @@ import java.util.regex.Pattern;
  */
 public class NgramConstrainedLoader extends NgramLoader {
 
+    private static final String[] SHARD_EXTENSIONS = {".csv", ".csv.zip", ".csv.gz", ".zip", ".gz"};
+
+    /**
+     * Ways of summing the counts of the lines of an n-gram
+     */
+    public enum Aggregation {
+        /** Sums lines of the same n-gram that directly follow each other, as in the sorted Google files */
+        ADJACENT,
+        /** Sums all lines of the same n-gram in a file using a hash table, spilling to disk when full */
+        HASH,
+        /** Sums all lines of the same n-gram in all files, by merging the sorted runs of every file at the end */
+        GLOBAL
+    }
+
+    /**
+     * Destinations of the loaded n-grams
+     */
+    public enum SinkType {
+        /** Rows of the MySQL n-gram table */
+        MYSQL,
+        /** One memory-mapped {@link NgramIndex} file for all files */
+        INDEX,
+        /** One file of n-grams sorted on their words per file, see {@link NgramRunSink} */
+        RUNS,
+        /** One file of tab separated values per file */
+        TSV,
+        /** Only counts the n-grams, to measure reading and filtering */
+        NULL
+    }
+
     private final int minYear;
     private final int maxYear;
     private final long minOccurrences;
-    private final Function<List<String>, Boolean> constrainer;
-    private Pattern wordPattern;
-    private List<String> lastChecked = new ArrayList<>();
-    private boolean lastCheckedResult;
-    private List<String> last = new ArrayList<>();
+    private final NgramConstraint constrainer;
+    private final WordPattern wordPattern;
+    private NgramVocabulary vocabulary;
+    private NgramCountSketch sketch;
+    private NgramAggregator aggregator;
+    private NgramAggregator globalAggregator;
+    private int[] wordTypeMasks = new int[0];
+    private final NgramRecord lastChecked = new NgramRecord();
+    private Reject lastCheckedRejection;
+    private final NgramRecord last = new NgramRecord();
     private long lastCount = 0;
+    private NgramYearCounts lastYearCounts;
 
-    public NgramConstrainedLoader(NgramCsvReader reader, NgramMySQLConnector connector, int minYear, int maxYear,
+    public NgramConstrainedLoader(NgramCsvReader reader, NgramSink sink, int minYear, int maxYear,
                                   int minOccurrences, Function<List<String>, Boolean> constrainer, String allowedRegex) {
-        super(reader, connector);
+        super(reader, sink);
         this.minYear = minYear;
         this.maxYear = maxYear;
         this.minOccurrences = minOccurrences;
-        this.constrainer = constrainer;
+        this.constrainer = constrainer instanceof NgramConstraint ? (NgramConstraint) constrainer : constrainer::apply;
 
-        this.wordPattern = Pattern.compile(allowedRegex);
+        this.wordPattern = WordPattern.compile(allowedRegex);
+    }
+    public NgramConstrainedLoader(NgramCsvReader reader, NgramMySQLConnector connector, int minYear, int maxYear,
+                                  int minOccurrences, Function<List<String>, Boolean> constrainer, String allowedRegex) {
+        this(reader, new NgramMySQLSink(connector), minYear, maxYear, minOccurrences, constrainer, allowedRegex);
     }
     public NgramConstrainedLoader(NgramCsvReader reader, NgramMySQLConnector connector, int minYear, int maxYear,
                                   int minOccurrences, String allowedRegex) {
-        this(reader, connector, minYear, maxYear, minOccurrences, (e -> true), allowedRegex);
+        this(reader, connector, minYear, maxYear, minOccurrences, NgramConstraint.ALL, allowedRegex);
+    }
+
+    /**
+     * Makes the loader filter words using the precomputed flags of the vocabulary
+     * instead of the regex and the constrainer. The vocabulary should be
+     * classified using the same regex and constrainer.
+     *
+     * @param vocabulary
+     */
+    public void setVocabulary(NgramVocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+
+    /**
+     * Makes the loader skip the regex, the constrainer and the aggregation of
+     * n-grams whose estimated count is below the minimum occurrences. The
+     * sketch should hold the counts of the accepted years of at least all
+     * lines that are summed into one total, e.g. of all files when aggregating
+     * globally.
+     *
+     * @param sketch
+     */
+    public void setCountSketch(NgramCountSketch sketch) {
+        this.sketch = sketch;
+    }
+
+    /**
+     * Makes the loader sum all lines of an n-gram in the file, instead of only
+     * adjacent lines. The minimum occurrences are checked on the totals, once
+     * the whole file is read.
+     *
+     * @param maxMemory   amount of bytes the counts may use before they are spilled to disk
+     * @param spillFolder folder to spill sorted runs of counts to
+     */
+    public void enableHashAggregation(long maxMemory, File spillFolder) {
+        this.aggregator = new NgramAggregator(maxMemory, spillFolder, lastYearCounts != null);
+    }
+
+    /**
+     * Makes the loader sum the lines using the given aggregator, which may
+     * already hold the counts of other files, e.g. when the loader has no
+     * reader and only stores the totals of all files.
+     *
+     * @param aggregator aggregator keeping years if the year counts are enabled
+     */
+    public void enableHashAggregation(NgramAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * Makes the loader sum all lines of an n-gram in the file like the hash
+     * aggregation, but pass the sorted runs on to the global aggregator instead
+     * of storing the n-grams, such that their counts are only checked once the
+     * totals of all files are known.
+     *
+     * @param globalAggregator aggregator collecting the runs of all files
+     * @param maxMemory        amount of bytes the counts of the file may use before they are spilled to disk
+     * @param spillFolder      folder to spill sorted runs of counts to
+     */
+    public void enableGlobalAggregation(NgramAggregator globalAggregator, long maxMemory, File spillFolder) {
+        enableHashAggregation(maxMemory, spillFolder);
+        this.globalAggregator = globalAggregator;
+    }
+
+    /**
+     * Makes the loader store the counts of every accepted year of an n-gram
+     * next to their total, instead of only the total. Should be called before
+     * enabling hash aggregation.
+     */
+    public void enableYearCounts() {
+        if (aggregator != null) {
+            throw new IllegalStateException("Year counts should be enabled before hash aggregation");
+        }
+        this.lastYearCounts = new NgramYearCounts();
+        getSink().enableYearCounts();
     }
 
+    /**
+     * Loads the files of every size of n-grams in the arguments. All sizes share
+     * the threads, the connection pool and the word type cache, and their files
+     * are started in turns, such that every size gets a fair share of the
+     * threads.
+     */
     public static void load(ConstrainedLoaderArguments arguments)
             throws ClassNotFoundException, URISyntaxException, SQLException {
-        System.out.println("START " + arguments.getN() + " grams");
+        List<ConstrainedLoaderArguments> argumentsPerN = arguments.getArgumentsPerN();
+        argumentsPerN.forEach(NgramConstrainedLoader::validate);
+
+        if (arguments.getTaggerThreads() > 1) {
+            ConstraintStringConverter.getWordTypeCalculator().setThreads(arguments.getTaggerThreads());
+        }
+        if (arguments.getPosLexicon() != null) {
+            try {
+                ConstraintStringConverter.getWordTypeCalculator().setLexicon(PosLexicon.open(arguments.getPosLexicon()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // The words table is shared by all sizes
+        Map<String, Integer> wordIds = new ConcurrentHashMap<>();
+        // Sizes using the same 1-gram files and filters share their vocabulary
+        Map<List<Object>, NgramVocabulary> vocabularies = new HashMap<>();
+        List<Job> jobs = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, arguments.getThreads()));
+        // Every file being loaded may hold a connection for each of its writers, and one for its words
+        int connections = arguments.getThreads() * Math.max(1, arguments.getWriters());
+        if (arguments.getSchema() == Schema.IDS && arguments.isResume()) {
+            connections += arguments.getThreads();
+        }
+        try (NgramConnectionPool pool = new NgramConnectionPool(connections, arguments.getHost(),
+                arguments.getPort(), arguments.getUsername(), arguments.getPassword(),
+                arguments.getDatabaseName())) {
+            for (ConstrainedLoaderArguments nArguments : argumentsPerN) {
+                Job job = new Job(nArguments, wordIds, argumentsPerN.size() > 1);
+                jobs.add(job);
+                job.prepare(pool, executor, vocabularies);
+            }
+            // Submit the files of all sizes in turns, as the executor starts them in order
+            boolean submitted = true;
+            while (submitted) {
+                submitted = false;
+                for (Job job : jobs) {
+                    submitted |= job.submitNext(pool, executor);
+                }
+            }
+            for (Job job : jobs) {
+                job.finish(pool);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            jobs.forEach(job -> job.metrics.close());
+        }
+
+        for (Job job : jobs) {
+            job.printSummary();
+        }
+    }
+
+    private static void validate(ConstrainedLoaderArguments arguments) {
+        if (arguments.getAggregationMemory() < 1
+                || arguments.getAggregationMemory() > NgramAggregator.MAX_MEMORY >> 20) {
+            throw new IllegalArgumentException("The aggregation memory should be between 1 and "
+                    + (NgramAggregator.MAX_MEMORY >> 20) + " megabytes");
+        }
+        // Also checked on the sink of every file, but rejected before any work starts
+        if (arguments.getSink() != SinkType.MYSQL && arguments.isResume()) {
+            throw new IllegalArgumentException("Only loading into MySQL can be resumed");
+        }
+        if (arguments.getAggregation() == Aggregation.GLOBAL && arguments.isResume()) {
+            throw new IllegalArgumentException("Loading with the global aggregation can not be resumed");
+        }
+        if (arguments.getWriters() > 1 && arguments.isResume()) {
+            // Rows committed on one connection can not be covered by a checkpoint committed on another
+            throw new IllegalArgumentException("Loading with several writers can not be resumed");
+        }
+        if (arguments.isStaging() && (arguments.getSink() != SinkType.MYSQL || arguments.isResume())) {
+            throw new IllegalArgumentException("Only loading into MySQL without resuming can use a staging table");
+        }
+        if (arguments.isStaging() && arguments.getSchema() == Schema.WORDS
+                && arguments.getAggregation() != Aggregation.GLOBAL) {
+            // The staging table has no unique key to merge n-grams occurring in several files
+            throw new IllegalArgumentException("A staging table for the 'WORDS' layout needs the 'GLOBAL' aggregation");
+        }
+        if (arguments.isDisableChecks() && arguments.getSchema() == Schema.WORDS
+                && !(arguments.isStaging() && arguments.getAggregation() == Aggregation.GLOBAL)) {
+            // Without unique checks, an n-gram inserted twice would become two rows instead of being summed
+            throw new IllegalArgumentException(
+                    "Disabling the checks for the 'WORDS' layout needs a staging table and the 'GLOBAL' aggregation");
+        }
+        if (arguments.isYearCounts() && arguments.getSink() == SinkType.MYSQL
+                && arguments.getAggregation() != Aggregation.GLOBAL) {
+            // The upsert sums the counts of an n-gram occurring in several files, but can not merge its years
+            throw new IllegalArgumentException("Storing the counts per year in MySQL needs the 'GLOBAL' aggregation");
+        }
+        if (arguments.getWriters() > 1 && arguments.getSink() != SinkType.MYSQL) {
+            throw new IllegalArgumentException("Only loading into MySQL can use several writers");
+        }
+    }
+
+    /**
+     * Loading of all files of one size of n-grams
+     */
+    private static class Job {
+        private final ConstrainedLoaderArguments arguments;
+        private final Map<String, Integer> wordIds;
+        private final String label;
+        private final NgramLoadMetrics metrics = new NgramLoadMetrics();
+        private NgramVocabulary vocabulary;
+        private NgramIndexWriter indexWriter;
+        private NgramAggregator globalAggregator;
+        private NgramCountSketch globalSketch;
+        private final List<Future<NgramShardSummary>> futures = new ArrayList<>();
+        private final List<NgramShardSummary> summaries = new ArrayList<>();
+        private int next;
+
+        Job(ConstrainedLoaderArguments arguments, Map<String, Integer> wordIds, boolean labeled) {
+            this.arguments = arguments;
+            this.wordIds = wordIds;
+            this.label = labeled ? arguments.getN() + "grams: " : "";
+            this.next = arguments.getBegin();
+        }
+
+        /**
+         * Collects everything needed before the files can be loaded, and creates
+         * the tables
+         */
+        void prepare(NgramConnectionPool pool, ExecutorService executor,
+                Map<List<Object>, NgramVocabulary> vocabularies) throws ClassNotFoundException,
+                URISyntaxException, SQLException, InterruptedException, ExecutionException {
+            System.out.println("START " + arguments.getN() + " grams");
+            if (arguments.getVocabularyPrefix() != null) {
+                List<Object> key = Arrays.asList(arguments.getFolder().getAbsoluteFile(),
+                        arguments.getVocabularyPrefix(), arguments.getMinYear(), arguments.getMaxYear(),
+                        arguments.getMinOccurrences(), arguments.getAllowedRegex(), arguments.getConstrainer());
+                vocabulary = vocabularies.computeIfAbsent(key, k -> collectVocabulary(arguments));
+            }
+            if (arguments.getSink() != SinkType.MYSQL && arguments.getSink() != SinkType.NULL) {
+                getOutputFolder(arguments).mkdirs();
+            }
+            if (arguments.getSink() == SinkType.INDEX) {
+                indexWriter = new NgramIndexWriter(getIndexFile(arguments), arguments.getN(),
+                        arguments.getAggregationMemory() << 20, arguments.getSpillFolder());
+            }
+            if (arguments.getAggregation() == Aggregation.GLOBAL) {
+                globalAggregator = new NgramAggregator(arguments.getAggregationMemory() << 20,
+                        arguments.getSpillFolder(), arguments.isYearCounts());
+            }
+
+            long totalBytes = 0;
+            for (int i = arguments.getBegin(); i < arguments.getEnd(); i++) {
+                totalBytes += findShard(arguments.getFolder(), arguments.getFilePrefix() + i).length();
+            }
+            metrics.setTotalBytes(totalBytes);
+            if (arguments.getConstrainer() instanceof WordTypeConstraint) {
+                metrics.setWordTypeCalculator(ConstraintStringConverter.getWordTypeCalculator());
+            }
+            metrics.setSketched(arguments.isSketchPrepass());
+            metrics.register("be.thomaswinters.googlengrams:type=NgramLoadMetrics,n=" + arguments.getN());
+            metrics.startReporting(arguments.getProgressInterval(), System.out, label);
+
+            if (arguments.getSink() == SinkType.MYSQL) {
+                try (Connection connection = pool.acquire()) {
+                    NgramSchemaManager schemaManager = getSchemaManager(arguments, connection);
+                    if (arguments.isStaging()) {
+                        System.out.println("Loading into " + schemaManager.getStagingTable());
+                        schemaManager.createStagingTable(arguments.getStagingPartitions());
+                    } else {
+                        schemaManager.createTables();
+                    }
+                    if (arguments.isResume()) {
+                        NgramCheckpoint.createTable(connection);
+                    }
+                }
+            }
+            if (globalAggregator != null && arguments.isSketchPrepass()) {
+                globalSketch = collectGlobalSketch(arguments, executor);
+            }
+        }
+
+        /**
+         * Submits the next file to load, if any
+         *
+         * @return whether a file was submitted
+         */
+        boolean submitNext(NgramConnectionPool pool, ExecutorService executor) {
+            if (next >= arguments.getEnd()) {
+                return false;
+            }
+            int index = next++;
+            futures.add(executor.submit(() -> loadShard(arguments, index, pool, vocabulary, globalSketch,
+                    wordIds, indexWriter, globalAggregator, metrics)));
+            return true;
+        }
+
+        /**
+         * Waits for all files, and stores or writes everything that could only
+         * be stored once all files were read
+         */
+        void finish(NgramConnectionPool pool) throws ClassNotFoundException, URISyntaxException, SQLException,
+                IOException, InterruptedException, ExecutionException {
+            for (Future<NgramShardSummary> future : futures) {
+                summaries.add(future.get());
+            }
+            boolean successful = summaries.stream().allMatch(NgramShardSummary::isSuccessful);
+            if (globalAggregator != null) {
+                if (successful) {
+                    storeGlobal(arguments, pool, wordIds, indexWriter, globalAggregator, metrics);
+                } else {
+                    System.err.println("Not storing the totals of all files, as not every file could be loaded");
+                    globalAggregator.close();
+                }
+            }
+            if (arguments.isStaging()) {
+                try (Connection connection = pool.acquire()) {
+                    NgramSchemaManager schemaManager = getSchemaManager(arguments, connection);
+                    if (successful) {
+                        System.out.println("Indexing " + schemaManager.getStagingTable() + " and replacing "
+                                + schemaManager.getTable());
+                        schemaManager.swapStagingTable();
+                    } else {
+                        System.err.println("Keeping " + schemaManager.getStagingTable() + " next to "
+                                + schemaManager.getTable() + ", as not every file could be loaded");
+                    }
+                }
+            }
+            if (indexWriter != null) {
+                if (successful) {
+                    System.out.println("Writing index " + getIndexFile(arguments));
+                    indexWriter.close();
+                } else {
+                    System.err.println("Not writing index " + getIndexFile(arguments)
+                            + ", as not every file could be loaded");
+                    indexWriter.abandon();
+                }
+            }
+        }
+
+        void printSummary() {
+            System.out.println(label + metrics.getProgressLine());
+            System.out.println("Summary:");
+            summaries.forEach(System.out::println);
+            long failed = summaries.stream().filter(e -> !e.isSuccessful()).count();
+            System.out.println("Finished, " + (summaries.size() - failed) + " files loaded, " + failed + " failed");
+        }
+    }
+
+    /**
+     * Loads a single shard file into the sink chosen by the arguments, using a
+     * connection from the pool for MySQL. Failures are reported in the summary
+     * instead of thrown, such that other shards can continue loading.
+     */
+    private static NgramShardSummary loadShard(ConstrainedLoaderArguments arguments, int index,
+                                               NgramConnectionPool pool, NgramVocabulary vocabulary,
+                                               NgramCountSketch sketch, Map<String, Integer> wordIds, NgramIndexWriter indexWriter,
+                                               NgramAggregator globalAggregator, NgramLoadMetrics metrics) {
+        File file = findShard(arguments.getFolder(), arguments.getFilePrefix() + index);
+        System.out.println("Starting " + file.getName());
+        long start = System.currentTimeMillis();
+        Connection connection = null;
+        NgramSink sink = null;
+        try {
+            if (arguments.getSink() == SinkType.MYSQL && globalAggregator == null) {
+                connection = pool.acquire();
+            }
+            sink = globalAggregator != null ? new NgramCountingSink()
+                    : createSink(arguments, arguments.getFilePrefix() + index, connection, pool, wordIds, indexWriter);
+            NgramCheckpoint checkpoint = null;
+            if (arguments.isResume()) {
+                if (!sink.isResumable()) {
+                    throw new IllegalArgumentException(
+                            "Loading into " + sink.getClass().getSimpleName() + " can not be resumed");
+                }
+                checkpoint = NgramCheckpoint.load(connection, arguments.getN() + "grams", file.getName());
+                if (checkpoint.isFinished()) {
+                    System.out.println("Skipping " + file.getName() + ", already loaded");
+                    metrics.skip(file.length());
+                    sink.close();
+                    return new NgramShardSummary(index, file, System.currentTimeMillis() - start, Optional.empty());
+                }
+                if (checkpoint.getStartOffset() > 0) {
+                    System.out.println("Resuming " + checkpoint);
+                }
+            }
+            NgramConstrainedLoader loader = new NgramConstrainedLoader(new NgramCsvReader(file), sink,
+                    arguments.getMinYear(), arguments.getMaxYear(), arguments.getMinOccurrences(),
+                    arguments.getConstrainer(), arguments.getAllowedRegex());
+            loader.setMetrics(metrics);
+            if (arguments.isYearCounts()) {
+                loader.enableYearCounts();
+            }
+            if (checkpoint != null) {
+                loader.enableCheckpoints(checkpoint, arguments.getCheckpointEvery());
+            }
+            if (globalAggregator != null) {
+                loader.enableGlobalAggregation(globalAggregator, arguments.getAggregationMemory() << 20,
+                        arguments.getSpillFolder());
+            } else if (arguments.getAggregation() == Aggregation.HASH) {
+                loader.enableHashAggregation(arguments.getAggregationMemory() << 20, arguments.getSpillFolder());
+            }
+            if (sketch == null && arguments.isSketchPrepass()) {
+                sketch = new NgramCountSketch(arguments.getSketchMemory() << 20);
+                sketch.collect(new NgramCsvReader(file), acceptedYears(arguments));
+                System.out.println("Count sketch of " + file.getName() + ": " + sketch);
+            }
+            loader.setCountSketch(sketch);
+            if (vocabulary == null && arguments.isVocabularyPrepass()) {
+                NgramCountSketch frequent = sketch;
+                vocabulary = new NgramVocabulary();
+                vocabulary.collect(new NgramCsvReader(file), acceptedYears(arguments),
+                        record -> frequent == null || frequent.estimate(record) >= arguments.getMinOccurrences());
+                vocabulary.classify(WordPattern.compile(arguments.getAllowedRegex()), arguments.getConstrainer());
+            }
+            loader.setVocabulary(vocabulary);
+            if (arguments.isPipelined()) {
+                loader.enablePipeline(arguments.getQueueDepth(), arguments.getPipelineBatchSize());
+            }
+            // The loader closes the sink, also if loading fails
+            sink = null;
+            loader.execute();
+            System.out.println("Finished " + file.getName());
+            return new NgramShardSummary(index, file, System.currentTimeMillis() - start, Optional.empty());
+        } catch (Exception e) {
+            System.err.println("Failed " + file.getName());
+            e.printStackTrace();
+            if (sink != null) {
+                // Releases the connections of the writers of the sink
+                try {
+                    sink.close();
+                } catch (IOException | RuntimeException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+            return new NgramShardSummary(index, file, System.currentTimeMillis() - start, Optional.of(e));
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 
+    /**
+     * Fills a count sketch for every file concurrently, and sums them such that
+     * the minimum occurrences can be estimated on the totals over all files
+     */
+    private static NgramCountSketch collectGlobalSketch(ConstrainedLoaderArguments arguments,
+                                                        ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        NgramCountSketch globalSketch = new NgramCountSketch(arguments.getSketchMemory() << 20);
+        List<Future<?>> futures = new ArrayList<>();
         for (int i = arguments.getBegin(); i < arguments.getEnd(); i++) {
-            System.out.println("Starting " + i);
-            NgramConstrainedLoader loader = new NgramConstrainedLoader(
-                    new NgramCsvReader(new File(arguments.getFolder(), arguments.getFilePrefix() + i + ".csv")),
-                    new NgramMySQLConnector(arguments.getN(), arguments.getHost(), arguments.getPort(),
-                            arguments.getUsername(), arguments.getPassword(), arguments.getDatabaseName()),
+            File file = findShard(arguments.getFolder(), arguments.getFilePrefix() + i);
+            futures.add(executor.submit(() -> {
+                NgramCountSketch sketch = new NgramCountSketch(arguments.getSketchMemory() << 20);
+                sketch.collect(new NgramCsvReader(file), acceptedYears(arguments));
+                synchronized (globalSketch) {
+                    globalSketch.add(sketch);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        System.out.println("Count sketch of all files: " + globalSketch);
+        return globalSketch;
+    }
+
+    /**
+     * Stores the n-grams of all files collected by the global aggregator, merged
+     * in the order of their words, with the minimum occurrences checked on their
+     * totals over all files
+     */
+    private static void storeGlobal(ConstrainedLoaderArguments arguments, NgramConnectionPool pool,
+                                    Map<String, Integer> wordIds, NgramIndexWriter indexWriter,
+                                    NgramAggregator globalAggregator, NgramLoadMetrics metrics)
+            throws ClassNotFoundException, URISyntaxException, SQLException, IOException {
+        System.out.println("Storing the totals of all files");
+        try (Connection connection = arguments.getSink() == SinkType.MYSQL ? pool.acquire() : null) {
+            String name = arguments.getFilePrefix() + arguments.getBegin() + "-" + (arguments.getEnd() - 1);
+            NgramConstrainedLoader loader = new NgramConstrainedLoader(null,
+                    createSink(arguments, name, connection, pool, wordIds, indexWriter),
                     arguments.getMinYear(), arguments.getMaxYear(), arguments.getMinOccurrences(),
                     arguments.getConstrainer(), arguments.getAllowedRegex());
+            loader.setMetrics(metrics);
+            if (arguments.isYearCounts()) {
+                loader.enableYearCounts();
+            }
+            loader.enableHashAggregation(globalAggregator);
             loader.execute();
         }
+    }
+
+    private static NgramSink createSink(ConstrainedLoaderArguments arguments, String name, Connection connection,
+                                        NgramConnectionPool pool, Map<String, Integer> wordIds,
+                                        NgramIndexWriter indexWriter)
+            throws ClassNotFoundException, URISyntaxException, SQLException, IOException {
+        switch (arguments.getSink()) {
+            case INDEX:
+                return new NgramIndexSink(indexWriter);
+            case RUNS:
+                return new NgramRunSink(new File(getOutputFolder(arguments), name + ".run"),
+                        arguments.getAggregationMemory() << 20, arguments.getSpillFolder());
+            case TSV:
+                return new NgramTsvSink(new File(getOutputFolder(arguments), name + ".tsv"));
+            case NULL:
+                return new NgramCountingSink();
+            default:
+                if (arguments.getWriters() <= 1) {
+                    return createMySQLSink(arguments, connection, pool, wordIds);
+                }
+                return createPartitionedSink(arguments, connection, pool, wordIds);
+        }
+    }
+
+    private static NgramMySQLSink createMySQLSink(ConstrainedLoaderArguments arguments, Connection connection,
+                                                  NgramConnectionPool pool, Map<String, Integer> wordIds)
+            throws ClassNotFoundException, URISyntaxException, SQLException {
+        if (arguments.isDisableChecks()) {
+            NgramSchemaManager.disableChecks(connection, arguments.getSchema());
+        }
+        NgramMySQLConnector connector = NgramMySQLConnector.create(arguments.getN(), connection,
+                arguments.getSchema(), arguments.getInsertMode(), arguments.getBatchSize(),
+                arguments.getInfileChunkSize(), arguments.getCommitEvery(), wordIds);
+        if (arguments.isStaging()) {
+            connector.setTableName(getSchemaManager(arguments, connection).getStagingTable());
+        }
+        if (arguments.isResume()) {
+            connector.enableCheckpoints();
+            if (connector instanceof NgramMySQLIdConnector) {
+                // The words are committed right away, the n-grams only at checkpoints
+                Connection wordsConnection = pool.acquire();
+                try {
+                    ((NgramMySQLIdConnector) connector).setWordsConnection(wordsConnection);
+                } catch (SQLException | RuntimeException e) {
+                    wordsConnection.close();
+                    throw e;
+                }
+            }
+        }
+        return new NgramMySQLSink(connector);
+    }
+
+    /**
+     * Creates a sink writing on the given connection and on a connection from the
+     * pool for every other writer, which return to the pool when the sink is
+     * closed
+     */
+    private static NgramSink createPartitionedSink(ConstrainedLoaderArguments arguments, Connection connection,
+                                                   NgramConnectionPool pool, Map<String, Integer> wordIds)
+            throws ClassNotFoundException, URISyntaxException, SQLException, IOException {
+        List<NgramMySQLSink> sinks = new ArrayList<>();
+        try {
+            sinks.add(createMySQLSink(arguments, connection, pool, wordIds));
+            for (int i = 1; i < arguments.getWriters(); i++) {
+                Connection writerConnection = pool.acquire();
+                try {
+                    sinks.add(createMySQLSink(arguments, writerConnection, pool, wordIds));
+                } catch (SQLException | RuntimeException e) {
+                    writerConnection.close();
+                    throw e;
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (NgramMySQLSink sink : sinks) {
+                sink.close();
+            }
+            throw e;
+        }
+        return new NgramPartitionedSink(sinks, arguments.getQueueDepth(), arguments.getPipelineBatchSize());
+    }
+
+    private static NgramSchemaManager getSchemaManager(ConstrainedLoaderArguments arguments, Connection connection) {
+        return new NgramSchemaManager(connection, arguments.getN(), arguments.getSchema(), arguments.isYearCounts());
+    }
+
+    /**
+     * @return the folder to write the files of the sink to: the output, or the
+     *         folder containing it if the output is the index file
+     */
+    private static File getOutputFolder(ConstrainedLoaderArguments arguments) {
+        File output = arguments.getOutput().getAbsoluteFile();
+        return arguments.getSink() == SinkType.INDEX && !output.isDirectory() ? output.getParentFile() : output;
+    }
+
+    /**
+     * @return the output if it is a file, or an index file named after the
+     *         n-gram table in the output folder otherwise
+     */
+    private static File getIndexFile(ConstrainedLoaderArguments arguments) {
+        File output = arguments.getOutput().getAbsoluteFile();
+        return output.isDirectory() ? new File(output, arguments.getN() + "grams.index") : output;
+    }
+
+    /**
+     * Collects and classifies the words of the 1-gram files with the vocabulary
+     * prefix that occur often enough to be part of a stored n-gram
+     */
+    private static NgramVocabulary collectVocabulary(ConstrainedLoaderArguments arguments) {
+        NgramVocabulary vocabulary = new NgramVocabulary();
+        File file;
+        for (int i = 0; (file = findShard(arguments.getFolder(), arguments.getVocabularyPrefix() + i)).exists(); i++) {
+            System.out.println("Collecting vocabulary of " + file.getName());
+            vocabulary.collectFrequent(new NgramCsvReader(file), acceptedYears(arguments),
+                    arguments.getMinOccurrences());
+        }
+        System.out.println("Classifying " + vocabulary.size() + " words");
+        vocabulary.classify(WordPattern.compile(arguments.getAllowedRegex()), arguments.getConstrainer());
+        return vocabulary;
+    }
 
-        System.out.println("Finished");
+    private static IntPredicate acceptedYears(ConstrainedLoaderArguments arguments) {
+        return year -> arguments.getMinYear() <= year && year <= arguments.getMaxYear();
+    }
 
+    /**
+     * Finds the shard file with the given name, either uncompressed or as a
+     * compressed archive as distributed by Google
+     */
+    static File findShard(File folder, String name) {
+        for (String extension : SHARD_EXTENSIONS) {
+            File file = new File(folder, name + extension);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return new File(folder, name + SHARD_EXTENSIONS[0]);
     }
 
     public static void main(String[] args)
@@ -71,51 +727,194 @@ public class NgramConstrainedLoader extends NgramLoader {
         load(arguments);
     }
 
-    protected boolean matchesRegex(String word) {
-        return wordPattern.matcher(word).matches();
+    protected boolean matchesRegex(CharSequence word) {
+        return wordPattern.matches(word);
     }
 
+    @Override
     protected boolean isAcceptedYear(int year) {
         return minYear <= year && year <= maxYear;
     }
 
-    private boolean shouldStore(List<String> words, int year) {
-        if (lastChecked.equals(words)) {
-            return lastCheckedResult;
+    private boolean matchesRegex(NgramRecord record) {
+        if (wordPattern.matchesAll()) {
+            return true;
+        }
+        // Patterns that can not check the bytes match the allocation free view on the word
+        boolean bytes = wordPattern.matchesBytes();
+        for (int i = 0; i < record.size(); i++) {
+            if (bytes ? !wordPattern.matches(record.getBytes(), record.getWordStart(i), record.getWordEnd(i))
+                    : !wordPattern.matches(record.getWord(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean shouldStore(NgramRecord record) {
+        if (!isAcceptedYear(record.getYear())) {
+            reject(Reject.YEAR);
+            return false;
+        }
+        if (!lastChecked.hasSameWords(record)) {
+            if (isRare(record)) {
+                lastCheckedRejection = Reject.SKETCH;
+            } else {
+                lastCheckedRejection = vocabulary != null ? checkVocabulary(record) : checkWords(record);
+            }
+            lastChecked.copyFrom(record);
+        }
+        if (lastCheckedRejection != null) {
+            reject(lastCheckedRejection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the reason the words are rejected, or null if they are accepted
+     */
+    private Reject checkWords(NgramRecord record) {
+        if (!matchesRegex(record)) {
+            return Reject.REGEX;
         }
-        boolean result = isAcceptedYear(year) && words.stream().allMatch(e -> matchesRegex(e))
-                && constrainer.apply(words);
+        if (!constrainer.acceptsAll() && !constrainer.apply(record.getWordList())) {
+            return Reject.CONSTRAINER;
+        }
+        return null;
+    }
 
-        lastChecked = words;
-        lastCheckedResult = result;
+    /**
+     * Checks the precomputed flags of the words, falling back on the regex and
+     * the constrainer for words missing from the vocabulary
+     *
+     * @return the reason the words are rejected, or null if they are accepted
+     */
+    private Reject checkVocabulary(NgramRecord record) {
+        if (wordTypeMasks.length < record.size()) {
+            wordTypeMasks = new int[record.size()];
+        }
+        for (int i = 0; i < record.size(); i++) {
+            int id = vocabulary.idOf(record.getBytes(), record.getWordStart(i), record.getWordEnd(i));
+            if (id < 0) {
+                return checkWords(record);
+            }
+            if (!vocabulary.isAcceptedByRegex(id)) {
+                return Reject.REGEX;
+            }
+            wordTypeMasks[i] = vocabulary.getWordTypeMask(id);
+        }
+        boolean accepted;
+        if (constrainer.acceptsAll()) {
+            accepted = true;
+        } else if (constrainer instanceof WordTypeConstraint) {
+            accepted = ((WordTypeConstraint) constrainer).acceptsWordTypes(wordTypeMasks);
+        } else {
+            accepted = constrainer.apply(record.getWordList());
+        }
+        return accepted ? null : Reject.CONSTRAINER;
+    }
 
-        return result;
+    /**
+     * @return whether the sketch shows that the n-gram of the record can not
+     *         reach the minimum occurrences
+     */
+    private boolean isRare(NgramRecord record) {
+        return sketch != null && sketch.estimate(record) < minOccurrences;
     }
 
     private boolean shouldStoreCount(long count) {
         return count >= minOccurrences;
     }
 
+    /**
+     * Lets the constrainer prepare for all distinct n-grams of the batch that
+     * pass the year and regex checks, unless the vocabulary already classified
+     * their words
+     */
     @Override
-    protected void store(List<String> words, int year, long count) {
-        if (shouldStore(words, year)) {
-            if (!words.equals(last)) {
-                if (!last.isEmpty() && shouldStoreCount(lastCount)) {
-                    super.store(last, 0, lastCount);
+    protected void prepare(NgramRecord[] records, int size) {
+        if (vocabulary != null || constrainer.acceptsAll()) {
+            return;
+        }
+        List<List<String>> upcoming = new ArrayList<>();
+        NgramRecord previous = null;
+        for (int i = 0; i < size; i++) {
+            NgramRecord record = records[i];
+            if (previous == null || !record.hasSameWords(previous)) {
+                if (isAcceptedYear(record.getYear()) && !isRare(record) && matchesRegex(record)) {
+                    upcoming.add(record.getWords());
                 }
-                last = words;
-                lastCount = count;
+                previous = record;
+            }
+        }
+        if (!upcoming.isEmpty()) {
+            constrainer.prepare(upcoming);
+        }
+    }
+
+    @Override
+    protected void store(NgramRecord record) {
+        if (shouldStore(record)) {
+            if (aggregator != null) {
+                aggregator.add(record);
             } else {
-                lastCount += count;
+                aggregate(record, record.getOffset());
+            }
+        }
+    }
+
+    /**
+     * Adds the record to the count of the last n-gram if it has the same words,
+     * and stores the last n-gram otherwise
+     *
+     * @param resumeOffset offset to resume from once the last n-gram is stored, or -1 if unknown
+     */
+    private void aggregate(NgramRecord record, long resumeOffset) {
+        if (!record.hasSameWords(last)) {
+            storeLast(resumeOffset);
+            last.copyFrom(record);
+            lastCount = record.getCount();
+            if (lastYearCounts != null) {
+                lastYearCounts.clear();
             }
+        } else {
+            lastCount += record.getCount();
+        }
+        if (lastYearCounts != null) {
+            lastYearCounts.add(record.getYear(), record.getCount());
+        }
+    }
+
+    private void storeLast(long resumeOffset) {
+        if (last.isEmpty()) {
+            return;
+        }
+        if (shouldStoreCount(lastCount)) {
+            super.store(last.getWords(), lastCount, lastYearCounts == null ? null : lastYearCounts.encode(),
+                    resumeOffset);
+        } else {
+            reject(Reject.MIN_OCCURRENCES);
         }
     }
 
     @Override
     protected void endStoring() {
-        super.store(last, 0, lastCount);
-        last = new ArrayList<>();
+        if (globalAggregator != null) {
+            globalAggregator.addRuns(aggregator);
+            return;
+        }
+        if (aggregator != null) {
+            if (aggregator.getAmountOfRuns() > 0) {
+                System.out.println("Merging " + aggregator.getAmountOfRuns() + " sorted runs");
+            }
+            // The aggregated n-grams arrive sorted, with all their years after each other
+            aggregator.finish(record -> aggregate(record, -1));
+        }
+        storeLast(-1);
+        last.clear();
         lastCount = 0;
+        flush();
     }
 
 }
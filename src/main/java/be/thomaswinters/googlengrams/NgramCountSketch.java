@@ -0,0 +1,175 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Count-min sketch estimating the total count of every n-gram in a fixed
+ * amount of memory. It is filled in a quick first pass over a file, such that
+ * the loader can skip the regex and the constrainer for n-grams that can not
+ * reach the minimum occurrences.
+ *
+ * Every n-gram is hashed to one counter in each of {@value #DEPTH} rows, and
+ * its estimate is the smallest of these counters. Counters are only raised as
+ * far as needed (conservative update), so the estimate is never lower than the
+ * real total, and only higher when the n-gram shares all its counters with
+ * other n-grams. Counters saturate instead of overflowing.
+ *
+ * Sketches of the same size can be summed, e.g. to estimate the totals over
+ * all files.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramCountSketch {
+
+	static final int DEPTH = 4;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final int[] counters;
+	private final int widthMask;
+	private long total = 0;
+
+	/*-********************************************-*/
+
+	/**
+	 * @param maxMemory
+	 *            amount of bytes the counters may use, rounded down to a power of
+	 *            two counters per row
+	 */
+	public NgramCountSketch(long maxMemory) {
+		long width = Long.highestOneBit(Math.max(1, maxMemory / (4L * DEPTH)));
+		width = Math.min(width, 1 << 28);
+		this.counters = new int[(int) width * DEPTH];
+		this.widthMask = (int) width - 1;
+	}
+
+	/*-********************************************-*
+	 *  Counting
+	*-********************************************-*/
+
+	/**
+	 * Adds the counts of all lines with an accepted year to this sketch
+	 *
+	 * @param reader
+	 * @param yearFilter
+	 */
+	public void collect(NgramCsvReader reader, IntPredicate yearFilter) {
+		reader.convert(yearFilter, this::add);
+	}
+
+	/**
+	 * Adds the count of the record to the estimate of its words
+	 */
+	public void add(NgramRecord record) {
+		add(record.getBytes(), record.getWordStart(0), record.getWordEnd(record.size() - 1), record.getCount());
+	}
+
+	/**
+	 * Adds the count to the estimate of the n-gram with the given bytes
+	 */
+	public void add(byte[] bytes, int start, int end, long count) {
+		long hash = hash(bytes, start, end);
+		int raised = (int) Math.min(Integer.MAX_VALUE, estimate(hash) + count);
+		for (int row = 0; row < DEPTH; row++) {
+			int slot = slot(hash, row);
+			if (counters[slot] < raised) {
+				counters[slot] = raised;
+			}
+		}
+		total += count;
+	}
+
+	/**
+	 * Adds all counts of the other sketch, which should have the same size
+	 */
+	public void add(NgramCountSketch other) {
+		if (other.counters.length != counters.length) {
+			throw new IllegalArgumentException("Only sketches of the same size can be summed");
+		}
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = (int) Math.min(Integer.MAX_VALUE, (long) counters[i] + other.counters[i]);
+		}
+		total += other.total;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Estimating
+	*-********************************************-*/
+
+	/**
+	 * @return an upper bound of the total count of the words of the record. Can
+	 *         be called by several threads once the sketch is filled.
+	 */
+	public long estimate(NgramRecord record) {
+		return estimate(record.getBytes(), record.getWordStart(0), record.getWordEnd(record.size() - 1));
+	}
+
+	public long estimate(byte[] bytes, int start, int end) {
+		return estimate(hash(bytes, start, end));
+	}
+
+	private long estimate(long hash) {
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters[slot(hash, row)]);
+		}
+		return estimate;
+	}
+
+	private static long hash(byte[] bytes, int start, int end) {
+		// FNV-1a, with the high bits mixed into the low bits
+		long hash = 0xCBF29CE484222325L;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ bytes[i]) * 0x100000001B3L;
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Derives the counter of every row from both halves of the hash
+	 */
+	private int slot(long hash, int row) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	public int getWidth() {
+		return widthMask + 1;
+	}
+
+	/**
+	 * @return the sum of all added counts
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the amount by which an estimate exceeds the real count with a
+	 *         probability of at most <code>e^-depth</code>: the total divided by
+	 *         the width, times <code>e</code>
+	 */
+	public long getErrorBound() {
+		return (long) Math.ceil(Math.E * total / getWidth());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d x %,d counters, total %,d, estimates at most %,d too high with %.0f%% probability",
+				DEPTH, getWidth(), total, getErrorBound(), 100 * (1 - Math.exp(-DEPTH)));
+	}
+
+	/*-********************************************-*/
+
+}
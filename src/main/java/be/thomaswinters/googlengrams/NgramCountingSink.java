@@ -0,0 +1,42 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.List;
+
+/**
+ * Sink dropping all n-grams and only counting them, such that the speed of
+ * reading and filtering can be measured without the cost of writing
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramCountingSink implements NgramSink {
+
+	private long ngrams = 0;
+	private long totalCount = 0;
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		ngrams++;
+		totalCount += count;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	public long getNgrams() {
+		return ngrams;
+	}
+
+	/**
+	 * @return the sum of the counts of all accepted n-grams
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+}
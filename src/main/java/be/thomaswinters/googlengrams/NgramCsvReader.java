@@ -1,60 +1,294 @@
 package be.thomaswinters.googlengrams;
 
+import be.thomaswinters.googlengrams.NgramChunkInflater.Compression;
+
 import java.io.*;
-import java.util.Arrays;
-import java.util.List;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntPredicate;
 
 /**
  * Class that reads an (Google) n-gram file and is able to pass the ngram with
- * its year and count with a lambda function
- * 
+ * its year and count to an {@link NgramRecordConsumer}
+ *
+ * Uncompressed files are memory-mapped, compressed files are decompressed on a
+ * separate thread. Both are parsed on byte level: fields are found by
+ * scanning for the separator bytes, years and counts are decoded as primitives
+ * into a reused {@link NgramRecord}, and the words are only copied for lines
+ * with an accepted year.
+ *
  * @author Thomas Winters
  *
  */
 public class NgramCsvReader {
+	private static final int MAPPED_WINDOW_SIZE = 1 << 28;
+	private static final int PROGRESS_STEP = 1 << 20;
+
 	private final File ngramCsvPath;
-	private final String seperator;
-	private final String wordSeperator;
+	private final byte seperatorByte;
+	private final byte wordSeperatorByte;
+
+	private final NgramRecord record = new NgramRecord();
+	private volatile long bytesRead = 0;
+	private volatile NgramChunkInflater inflater;
 
 	public NgramCsvReader(File ngramCsvPath, String seperator, String wordSeperator) {
 		this.ngramCsvPath = ngramCsvPath;
-		this.seperator = seperator;
-		this.wordSeperator = wordSeperator;
+		this.seperatorByte = toSingleByte(seperator);
+		this.wordSeperatorByte = toSingleByte(wordSeperator);
 	}
 
 	public NgramCsvReader(File ngramCsvPath) {
 		this(ngramCsvPath, "\t", " ");
 	}
 
-	public void convert(Function<List<String>, Function<Integer, Consumer<Integer>>> consumer) {
-		BufferedReader br = null;
-		String line = "";
+	private static byte toSingleByte(String seperator) {
+		if (seperator.length() != 1 || seperator.charAt(0) >= 0x80) {
+			throw new IllegalArgumentException("Seperator should be a single ASCII character: '" + seperator + "'");
+		}
+		return (byte) seperator.charAt(0);
+	}
+
+	public void convert(NgramRecordConsumer consumer) {
+		convert(year -> true, consumer);
+	}
+
+	/**
+	 * Passes every line of the file with a year accepted by the year filter to
+	 * the consumer. Gzip and zip compressed files are decompressed on the fly.
+	 *
+	 * @param yearFilter
+	 * @param consumer
+	 */
+	public void convert(IntPredicate yearFilter, NgramRecordConsumer consumer) {
+		convert(0, yearFilter, consumer);
+	}
+
+	/**
+	 * Passes every line starting from the given offset, as returned by
+	 * {@link NgramRecord#getOffset()}, to the consumer. Uncompressed files are
+	 * mapped from the offset on, compressed files are decompressed up to the
+	 * offset without parsing.
+	 *
+	 * @param startOffset
+	 * @param yearFilter
+	 * @param consumer
+	 */
+	public void convert(long startOffset, IntPredicate yearFilter, NgramRecordConsumer consumer) {
 		try {
-			br = new BufferedReader(new FileReader(ngramCsvPath));
-			while ((line = br.readLine()) != null) {
-				String[] args = line.split(seperator);
-				List<String> ngram = Arrays.asList(args[0].split(wordSeperator));
-				consumer.apply(ngram).apply(Integer.parseInt(args[1])).accept(Integer.parseInt(args[2]));
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			Compression compression = Compression.detect(ngramCsvPath);
+			bytesRead = compression == Compression.NONE ? startOffset : 0;
+			if (compression == Compression.NONE) {
+				convertMapped(startOffset, yearFilter, consumer);
+			} else {
+				convertCompressed(compression, startOffset, yearFilter, consumer);
+			}
+			bytesRead = getLength();
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void convertMapped(long startOffset, IntPredicate yearFilter, NgramRecordConsumer consumer)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(ngramCsvPath.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = startOffset;
+			while (position < size) {
+				long windowSize = Math.min(MAPPED_WINDOW_SIZE, size - position);
+				boolean endOfInput = position + windowSize == size;
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+
+				int consumed = parse(window, 0, endOfInput, position, yearFilter, consumer);
+				if (consumed == 0 && !endOfInput) {
+					throw new IOException("Line at byte " + position + " is longer than " + MAPPED_WINDOW_SIZE
+							+ " bytes in " + ngramCsvPath);
+				}
+				position += consumed;
+			}
+		}
+	}
+
+	/**
+	 * Parses the buffers filled by a decompressing thread. Lines spanning two
+	 * buffers are stitched together in a separate buffer.
+	 */
+	private void convertCompressed(Compression compression, long startOffset, IntPredicate yearFilter,
+			NgramRecordConsumer consumer) throws IOException {
+		ByteBuffer carry = ByteBuffer.allocate(1 << 12);
+		long carryOffset = 0;
+		long chunkOffset = 0;
+		try (NgramChunkInflater inflater = new NgramChunkInflater(ngramCsvPath, compression)) {
+			this.inflater = inflater;
+			ByteBuffer chunk;
+			while ((chunk = inflater.next()) != null) {
+				long nextChunkOffset = chunkOffset + chunk.limit();
+				if (nextChunkOffset <= startOffset) {
+					chunkOffset = nextChunkOffset;
+					inflater.recycle(chunk);
+					continue;
+				}
+				int start = (int) Math.max(0, startOffset - chunkOffset);
+				if (carry.position() > 0) {
+					int newline = indexOf(chunk, (byte) '\n', 0, chunk.limit());
+					int end = newline < 0 ? chunk.limit() : newline + 1;
+					carry = append(carry, chunk, 0, end);
+					if (newline >= 0) {
+						parse((ByteBuffer) carry.flip(), 0, true, carryOffset, yearFilter, consumer);
+						carry.clear();
+					}
+					start = end;
+				}
+				int consumed = parse(chunk, start, false, chunkOffset, yearFilter, consumer);
+				if (carry.position() == 0) {
+					carryOffset = chunkOffset + consumed;
+				}
+				carry = append(carry, chunk, consumed, chunk.limit());
+				inflater.recycle(chunk);
+				chunkOffset = nextChunkOffset;
+			}
+			if (carry.position() > 0) {
+				parse((ByteBuffer) carry.flip(), 0, true, carryOffset, yearFilter, consumer);
+			}
 		} finally {
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			this.inflater = null;
+		}
+	}
+
+	/**
+	 * @return the amount of bytes of the file read so far, which can be called
+	 *         from another thread to follow the progress. For compressed files,
+	 *         these are the compressed bytes.
+	 */
+	public long getBytesRead() {
+		NgramChunkInflater current = inflater;
+		return current != null ? current.getBytesRead() : bytesRead;
+	}
+
+	public long getLength() {
+		return ngramCsvPath.length();
+	}
+
+	private static ByteBuffer append(ByteBuffer target, ByteBuffer source, int start, int end) {
+		int length = end - start;
+		if (target.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + length));
+			target.flip();
+			larger.put(target);
+			target = larger;
+		}
+		for (int i = start; i < end; i++) {
+			target.put(source.get(i));
+		}
+		return target;
+	}
+
+	/*-********************************************-*
+	 *  Byte level parsing
+	*-********************************************-*/
+
+	/**
+	 * Parses all complete lines in the buffer starting from the given index, and
+	 * the trailing line without newline if this is the end of the input. The
+	 * buffer starts at the given offset of the file.
+	 *
+	 * @return the index up to which the buffer is parsed, which is the start of
+	 *         the first incomplete line
+	 */
+	private int parse(ByteBuffer buffer, int from, boolean endOfInput, long bufferOffset, IntPredicate yearFilter,
+			NgramRecordConsumer consumer) {
+		int limit = buffer.limit();
+		int lineStart = from;
+		int reported = from;
+		while (lineStart < limit) {
+			if (lineStart - reported >= PROGRESS_STEP) {
+				bytesRead = bufferOffset + lineStart;
+				reported = lineStart;
+			}
+			int lineEnd = indexOf(buffer, (byte) '\n', lineStart, limit);
+			if (lineEnd < 0) {
+				if (!endOfInput) {
+					return lineStart;
 				}
+				lineEnd = limit;
+			}
+			parseLine(buffer, lineStart, lineEnd, bufferOffset, yearFilter, consumer);
+			lineStart = lineEnd + 1;
+		}
+		return limit;
+	}
+
+	private void parseLine(ByteBuffer buffer, int start, int end, long bufferOffset, IntPredicate yearFilter,
+			NgramRecordConsumer consumer) {
+		if (end > start && buffer.get(end - 1) == '\r') {
+			end--;
+		}
+		if (end == start) {
+			return;
+		}
+
+		int ngramEnd = indexOf(buffer, seperatorByte, start, end);
+		int yearEnd = ngramEnd < 0 ? -1 : indexOf(buffer, seperatorByte, ngramEnd + 1, end);
+		if (yearEnd < 0) {
+			throw new IllegalArgumentException("Malformed n-gram line in " + ngramCsvPath + ": expected at least 3 fields");
+		}
+		int year = (int) parseLong(buffer, ngramEnd + 1, yearEnd);
+		if (!yearFilter.test(year)) {
+			return;
+		}
+		int countEnd = indexOf(buffer, seperatorByte, yearEnd + 1, end);
+		long count = parseLong(buffer, yearEnd + 1, countEnd < 0 ? end : countEnd);
+
+		record.setWords(buffer, start, ngramEnd, wordSeperatorByte);
+		record.setYear(year);
+		record.setCount(count);
+		record.setVolumeCount(countEnd < 0 ? 0 : parseLastField(buffer, countEnd + 1, end));
+		record.setOffset(bufferOffset + start);
+		consumer.accept(record);
+	}
+
+	/**
+	 * The volume count is the last field, both for files with and without page
+	 * counts
+	 */
+	private long parseLastField(ByteBuffer buffer, int start, int end) {
+		int fieldStart = start;
+		int next;
+		while ((next = indexOf(buffer, seperatorByte, fieldStart, end)) >= 0) {
+			fieldStart = next + 1;
+		}
+		return parseLong(buffer, fieldStart, end);
+	}
+
+	private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == b) {
+				return i;
 			}
 		}
+		return -1;
 	}
 
+	private long parseLong(ByteBuffer buffer, int start, int end) {
+		if (start >= end) {
+			throw new NumberFormatException("Empty number field in " + ngramCsvPath);
+		}
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid number field in " + ngramCsvPath);
+			}
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	/*-********************************************-*/
+
 	public static void main(String[] args) {
 		NgramCsvReader reader = new NgramCsvReader(new File(args[0]));
-		reader.convert(e -> f -> g -> System.out.println(e + "->" + f + "->" + g));
+		reader.convert(System.out::println);
 	}
 }
@@ -0,0 +1,478 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+import static be.thomaswinters.googlengrams.NgramIndexWriter.*;
+
+/**
+ * Memory-mapped index of n-gram counts written by {@link NgramIndexWriter},
+ * answering the same count lookups as {@link NgramMySQLConnector} from a local
+ * file instead of a database.
+ *
+ * Words are looked up in the front-coded dictionary, and n-grams by binary
+ * search over the sparse block index and then the rows of a single block. The
+ * n-grams are sorted on their word ids, and the ids on the bytes of the words,
+ * so all n-grams starting with the same words are stored next to each other
+ * and can be scanned. Lookups do not allocate, apart from growing the buffers
+ * of the calling thread for longer words, so they can be done from many
+ * threads at once. The mapped file is released when the index is garbage
+ * collected.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramIndex {
+
+	/** Rows per mapped page, such that pages stay below the 2GB a buffer can map */
+	private static final int PAGE_BITS = 24;
+	private static final int PAGE_ROWS = 1 << PAGE_BITS;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final int n;
+	private final int idWidth;
+	private final int rowWidth;
+	private final int amountOfWords;
+	private final int blockRows;
+	private final long size;
+
+	private final ByteBuffer dictionary;
+	private final int dictionaryBlocks;
+	private final int entriesStart;
+	private final ByteBuffer[] tuples;
+	private final ByteBuffer[] counts;
+	private final ByteBuffer sparse;
+	private final long blocks;
+
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/*-********************************************-*/
+
+	private NgramIndex(FileChannel channel) throws IOException {
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			throw new IOException("Not an n-gram index");
+		}
+		this.n = header.getInt(8);
+		this.idWidth = header.getInt(12);
+		this.rowWidth = n * idWidth;
+		this.amountOfWords = header.getInt(16);
+		this.blockRows = header.getInt(20);
+		this.size = header.getLong(24);
+		long dictionaryStart = header.getLong(32);
+		long tuplesStart = header.getLong(40);
+		long countsStart = header.getLong(48);
+		long sparseStart = header.getLong(56);
+
+		this.dictionary = map(channel, dictionaryStart, tuplesStart - dictionaryStart);
+		this.dictionaryBlocks = dictionary.getInt(0);
+		this.entriesStart = 4 * (dictionaryBlocks + 2);
+
+		int pages = (int) ((size + PAGE_ROWS - 1) >>> PAGE_BITS);
+		this.tuples = new ByteBuffer[pages];
+		this.counts = new ByteBuffer[pages];
+		for (int page = 0; page < pages; page++) {
+			long firstRow = (long) page << PAGE_BITS;
+			long rows = Math.min(PAGE_ROWS, size - firstRow);
+			tuples[page] = map(channel, tuplesStart + firstRow * rowWidth, rows * rowWidth);
+			counts[page] = map(channel, countsStart + firstRow * 8, rows * 8);
+		}
+		this.sparse = map(channel, sparseStart, channel.size() - sparseStart);
+		this.blocks = (size + blockRows - 1) / blockRows;
+	}
+
+	/**
+	 * Memory-maps the index stored in the given file
+	 */
+	public static NgramIndex open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new NgramIndex(channel);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Section of the n-gram index too large to map: " + length + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+	}
+
+	/*-********************************************-*
+	 *  Counts
+	*-********************************************-*/
+
+	/**
+	 * @return the count of the n-gram with exactly the given words, or 0 if it
+	 *         is not in the index
+	 */
+	public long getCount(List<? extends CharSequence> words) {
+		if (words.size() != n) {
+			throw new IllegalArgumentException("Expected a " + n + "-gram, got " + words);
+		}
+		int[] ids = scratch.get().ids;
+		if (!toIds(words, ids)) {
+			return 0;
+		}
+		long row = findFirst(ids, n, false);
+		return row < size && compareRow(row, ids, n) == 0 ? getCount(row) : 0;
+	}
+
+	/**
+	 * @return the count of every n-gram in the iteration order of the
+	 *         collection, 0 for n-grams that are not in the index
+	 */
+	public long[] getCounts(Collection<? extends List<? extends CharSequence>> ngrams) {
+		long[] result = new long[ngrams.size()];
+		int i = 0;
+		for (List<? extends CharSequence> words : ngrams) {
+			result[i++] = getCount(words);
+		}
+		return result;
+	}
+
+	/**
+	 * Passes the row of every n-gram starting with the given words to the
+	 * consumer, in the order of the index. The words and count of a row can be
+	 * read using {@link #getWordId(long, int)}, {@link #getWord(int)} and
+	 * {@link #getCount(long)}.
+	 *
+	 * @param prefix
+	 *            the first words of the n-grams, at most n
+	 * @param consumer
+	 * @return the amount of rows passed on
+	 */
+	public long scan(List<? extends CharSequence> prefix, LongConsumer consumer) {
+		long from = findFirst(prefix, false);
+		long to = findFirst(prefix, true);
+		for (long row = from; row < to; row++) {
+			consumer.accept(row);
+		}
+		return to - from;
+	}
+
+	/**
+	 * @return the sum of the counts of all n-grams starting with the given words
+	 */
+	public long getPrefixCount(List<? extends CharSequence> prefix) {
+		long total = 0;
+		long to = findFirst(prefix, true);
+		for (long row = findFirst(prefix, false); row < to; row++) {
+			total += getCount(row);
+		}
+		return total;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Rows
+	*-********************************************-*/
+
+	/**
+	 * @return the amount of n-grams in the index
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	public long getCount(long row) {
+		return counts[(int) (row >>> PAGE_BITS)].getLong((int) (row & (PAGE_ROWS - 1)) * 8);
+	}
+
+	/**
+	 * @param row
+	 * @param i
+	 *            index of the word in the n-gram, starting from 0
+	 * @return the id of the word
+	 */
+	public int getWordId(long row, int i) {
+		ByteBuffer page = tuples[(int) (row >>> PAGE_BITS)];
+		int position = (int) (row & (PAGE_ROWS - 1)) * rowWidth + i * idWidth;
+		switch (idWidth) {
+		case 1:
+			return page.get(position) & 0xFF;
+		case 2:
+			return page.getShort(position) & 0xFFFF;
+		case 3:
+			return (page.get(position) & 0xFF) << 16 | (page.getShort(position + 1) & 0xFFFF);
+		default:
+			return page.getInt(position);
+		}
+	}
+
+	/**
+	 * @return the words of the n-gram stored in the given row
+	 */
+	public List<String> getWords(long row) {
+		List<String> words = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			words.add(getWord(getWordId(row, i)));
+		}
+		return words;
+	}
+
+	/**
+	 * @return the first row starting with (or, if strict, after) the given words,
+	 *         or an empty range if one of the words is not in the index
+	 */
+	private long findFirst(List<? extends CharSequence> prefix, boolean strict) {
+		if (prefix.size() > n) {
+			throw new IllegalArgumentException("Expected at most " + n + " words, got " + prefix);
+		}
+		int[] ids = scratch.get().ids;
+		if (!toIds(prefix, ids)) {
+			return 0;
+		}
+		return findFirst(ids, prefix.size(), strict);
+	}
+
+	/**
+	 * Finds the first row whose first k ids are at least (or, if strict, more
+	 * than) the given ids, using the sparse index to find the block
+	 */
+	private long findFirst(int[] ids, int k, boolean strict) {
+		long low = 0;
+		long high = blocks;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			int comparison = compareBlock(middle, ids, k);
+			if (comparison < 0 || (strict && comparison == 0)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		// The first block that is not before the ids, so the row is in the block
+		// before or at its start
+		low = Math.max(0, low - 1) * blockRows;
+		high = Math.min(size, high * blockRows);
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			int comparison = compareRow(middle, ids, k);
+			if (comparison < 0 || (strict && comparison == 0)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int compareRow(long row, int[] ids, int k) {
+		for (int i = 0; i < k; i++) {
+			int comparison = Integer.compare(getWordId(row, i), ids[i]);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	private int compareBlock(long block, int[] ids, int k) {
+		int position = (int) (block * n * 4);
+		for (int i = 0; i < k; i++) {
+			int comparison = Integer.compare(sparse.getInt(position + 4 * i), ids[i]);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Dictionary
+	*-********************************************-*/
+
+	public int getAmountOfWords() {
+		return amountOfWords;
+	}
+
+	/**
+	 * @param word
+	 * @return the id of the word, or -1 if it is not in the index
+	 */
+	public int getWordId(CharSequence word) {
+		Scratch scratch = this.scratch.get();
+		int keyLength = scratch.encode(word);
+		byte[] key = scratch.key;
+
+		// Last block whose first word is not after the word
+		int low = 0;
+		int high = dictionaryBlocks - 1;
+		int block = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int start = entriesStart + dictionary.getInt(4 * (middle + 1));
+			int comparison = compare(dictionary, start + 4, dictionary.getShort(start + 2) & 0xFFFF, key,
+					keyLength);
+			if (comparison <= 0) {
+				block = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (block < 0) {
+			return -1;
+		}
+
+		int position = entriesStart + dictionary.getInt(4 * (block + 1));
+		int end = Math.min(amountOfWords, (block + 1) * WORDS_PER_BLOCK);
+		for (int id = block * WORDS_PER_BLOCK; id < end; id++) {
+			position = scratch.decode(dictionary, position);
+			int comparison = compare(scratch.word, scratch.wordLength, key, keyLength);
+			if (comparison == 0) {
+				return id;
+			}
+			if (comparison > 0) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param id
+	 * @return the word with the given id
+	 */
+	public String getWord(int id) {
+		if (id < 0 || id >= amountOfWords) {
+			throw new IndexOutOfBoundsException("No word with id " + id);
+		}
+		Scratch scratch = this.scratch.get();
+		int block = id / WORDS_PER_BLOCK;
+		int position = entriesStart + dictionary.getInt(4 * (block + 1));
+		for (int i = block * WORDS_PER_BLOCK; i <= id; i++) {
+			position = scratch.decode(dictionary, position);
+		}
+		return new String(scratch.word, 0, scratch.wordLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Fills the array with the ids of the words
+	 *
+	 * @return false if a word is not in the index
+	 */
+	private boolean toIds(List<? extends CharSequence> words, int[] ids) {
+		for (int i = 0; i < words.size(); i++) {
+			ids[i] = getWordId(words.get(i));
+			if (ids[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	private static int compare(ByteBuffer buffer, int start, int length, byte[] key, int keyLength) {
+		int common = Math.min(length, keyLength);
+		for (int i = 0; i < common; i++) {
+			int comparison = Integer.compare(buffer.get(start + i) & 0xFF, key[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(length, keyLength);
+	}
+
+	private static int compare(byte[] word, int length, byte[] key, int keyLength) {
+		int common = Math.min(length, keyLength);
+		for (int i = 0; i < common; i++) {
+			int comparison = Integer.compare(word[i] & 0xFF, key[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(length, keyLength);
+	}
+
+	/**
+	 * Buffers of a single thread, reused for every lookup
+	 */
+	private final class Scratch {
+		private final int[] ids = new int[n];
+		private byte[] key = new byte[64];
+		private byte[] word = new byte[64];
+		private int wordLength = 0;
+
+		/**
+		 * Encodes the characters as UTF-8 into the key buffer, replacing unpaired
+		 * surrogates by '?' as {@link String#getBytes} does
+		 *
+		 * @return the length of the key
+		 */
+		int encode(CharSequence chars) {
+			if (key.length < 3 * chars.length()) {
+				key = new byte[3 * chars.length()];
+			}
+			int length = 0;
+			for (int i = 0; i < chars.length(); i++) {
+				char c = chars.charAt(i);
+				if (c < 0x80) {
+					key[length++] = (byte) c;
+				} else if (c < 0x800) {
+					key[length++] = (byte) (0xC0 | c >> 6);
+					key[length++] = (byte) (0x80 | c & 0x3F);
+				} else if (Character.isSurrogate(c)) {
+					if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+							&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+						int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+						key[length++] = (byte) (0xF0 | codePoint >> 18);
+						key[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+						key[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+						key[length++] = (byte) (0x80 | codePoint & 0x3F);
+					} else {
+						key[length++] = '?';
+					}
+				} else {
+					key[length++] = (byte) (0xE0 | c >> 12);
+					key[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+					key[length++] = (byte) (0x80 | c & 0x3F);
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Decodes the front-coded dictionary entry at the given position into the
+		 * word buffer, which holds the previous word of the block
+		 *
+		 * @return the position of the next entry
+		 */
+		int decode(ByteBuffer dictionary, int position) {
+			int shared = dictionary.getShort(position) & 0xFFFF;
+			int suffix = dictionary.getShort(position + 2) & 0xFFFF;
+			if (word.length < shared + suffix) {
+				word = Arrays.copyOf(word, Math.max(2 * word.length, shared + suffix));
+			}
+			position += 4;
+			for (int i = 0; i < suffix; i++) {
+				word[shared + i] = dictionary.get(position + i);
+			}
+			wordLength = shared + suffix;
+			return position + suffix;
+		}
+	}
+
+	/*-********************************************-*/
+
+}
@@ -0,0 +1,38 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.List;
+
+/**
+ * Sink passing the n-grams to an {@link NgramIndexWriter}, such that they can
+ * be looked up using an {@link NgramIndex}. The writer can be shared by the
+ * sinks of several files, and is written by closing it once all files are
+ * loaded. Only the total counts are stored, counts per year are ignored.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramIndexSink implements NgramSink {
+
+	private final NgramIndexWriter writer;
+
+	public NgramIndexSink(NgramIndexWriter writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		writer.add(words, count);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Does not write the index, as the writer can still be used by other sinks
+	 */
+	@Override
+	public void close() {
+	}
+
+}
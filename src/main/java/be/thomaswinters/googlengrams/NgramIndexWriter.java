@@ -0,0 +1,349 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Writes n-grams and their counts to an immutable index file that can be
+ * memory-mapped by {@link NgramIndex}, such that counts can be looked up
+ * without a database.
+ *
+ * N-grams can be added in any order and from several threads. Their counts are
+ * summed by an {@link NgramAggregator}, which spills sorted runs to disk when
+ * it exceeds its memory budget, and the file is only written when the writer
+ * is closed, next to it first such that an incomplete index never replaces the
+ * file. The distinct words are kept in memory.
+ *
+ * The file starts with a header, followed by:
+ * <ul>
+ * <li>the word dictionary: every word once, sorted on its UTF-8 bytes and
+ * front-coded in blocks of {@value #WORDS_PER_BLOCK} words. The id of a word
+ * is its position in the dictionary.</li>
+ * <li>the ids of the words of every n-gram, sorted, using as few bytes per id
+ * as the amount of words allows</li>
+ * <li>the count of every n-gram, 8 bytes each</li>
+ * <li>a sparse index holding the ids of the first n-gram of every block of
+ * {@value #BLOCK_ROWS} n-grams</li>
+ * </ul>
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramIndexWriter implements Closeable {
+
+	static final int MAGIC = 0x4E47_4958;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int WORDS_PER_BLOCK = 16;
+	static final int BLOCK_ROWS = 64;
+	static final int MAX_WORD_LENGTH = 0xFFFF;
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final File file;
+	private final int n;
+	private final NgramAggregator aggregator;
+	private final Set<String> words = new HashSet<>();
+	private boolean closed = false;
+
+	/*-********************************************-*/
+
+	/**
+	 * @param file
+	 *            file to write the index to when closed
+	 * @param n
+	 *            size of the n-grams
+	 * @param maxMemory
+	 *            amount of bytes of counts kept in memory before spilling
+	 * @param spillFolder
+	 *            folder to write sorted runs to
+	 */
+	public NgramIndexWriter(File file, int n, long maxMemory, File spillFolder) {
+		this.file = file;
+		this.n = n;
+		this.aggregator = new NgramAggregator(maxMemory, spillFolder);
+	}
+
+	/*-********************************************-*
+	 *  Adding
+	*-********************************************-*/
+
+	/**
+	 * Adds the count to the total of the n-gram
+	 */
+	public synchronized void add(List<String> ngram, long count) {
+		if (closed) {
+			throw new IllegalStateException("The index is already written");
+		}
+		if (ngram.size() != n) {
+			throw new IllegalArgumentException("Expected a " + n + "-gram, got " + ngram);
+		}
+		for (String word : ngram) {
+			if (!words.contains(word)) {
+				if (word.getBytes(StandardCharsets.UTF_8).length > MAX_WORD_LENGTH) {
+					throw new IllegalArgumentException("Word too long for the index: " + word);
+				}
+				words.add(word);
+			}
+		}
+		aggregator.add(ngram, count);
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Writing
+	*-********************************************-*/
+
+	/**
+	 * Discards the added n-grams without writing the index file, e.g. as not
+	 * every file could be loaded. Closing afterwards has no effect.
+	 */
+	public synchronized void abandon() {
+		closed = true;
+		words.clear();
+		aggregator.close();
+	}
+
+	/**
+	 * Writes the index file, after which no n-grams can be added anymore
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		File written = File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			write(written);
+			Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			written.delete();
+		}
+	}
+
+	private void write(File file) throws IOException {
+
+		List<byte[]> sorted = new ArrayList<>(words.size());
+		for (String word : words) {
+			sorted.add(word.getBytes(StandardCharsets.UTF_8));
+		}
+		words.clear();
+		sorted.sort(NgramIndexWriter::compareBytes);
+		Map<String, Integer> ids = new HashMap<>(sorted.size() * 2);
+		for (int i = 0; i < sorted.size(); i++) {
+			ids.put(new String(sorted.get(i), StandardCharsets.UTF_8), i);
+		}
+		byte[] dictionary = buildDictionary(sorted);
+		int idWidth = getIdWidth(sorted.size());
+		// Let the bytes of the words be collected while the rows are written
+		sorted = null;
+
+		File counts = File.createTempFile("ngram-index-counts-", ".bin", file.getAbsoluteFile().getParentFile());
+		counts.deleteOnExit();
+		long tuplesStart = HEADER_SIZE + dictionary.length;
+		RowWriter rows;
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE));
+					DataOutputStream countsOut = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(counts), IO_BUFFER_SIZE))) {
+				out.write(new byte[HEADER_SIZE]);
+				out.write(dictionary);
+
+				rows = new RowWriter(ids, idWidth, out, countsOut);
+				aggregator.finish(rows);
+
+				// Align the counts on 8 bytes
+				for (long i = tuplesStart + rows.size * n * idWidth; i % 8 != 0; i++) {
+					out.writeByte(0);
+				}
+				countsOut.flush();
+				try (InputStream in = new FileInputStream(counts)) {
+					byte[] buffer = new byte[IO_BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						out.write(buffer, 0, read);
+					}
+				}
+				for (int i = 0; i < rows.getBlocks() * n; i++) {
+					out.writeInt(rows.sparse[i]);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			counts.delete();
+		}
+
+		long countsStart = (tuplesStart + rows.size * n * idWidth + 7) / 8 * 8;
+		try (RandomAccessFile header = new RandomAccessFile(file, "rw")) {
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeInt(n);
+			header.writeInt(idWidth);
+			header.writeInt(ids.size());
+			header.writeInt(BLOCK_ROWS);
+			header.writeLong(rows.size);
+			header.writeLong(HEADER_SIZE);
+			header.writeLong(tuplesStart);
+			header.writeLong(countsStart);
+			header.writeLong(countsStart + 8 * rows.size);
+		}
+	}
+
+	/**
+	 * Writes the n-grams passed on by the aggregator as rows of word ids, and
+	 * their counts to a separate stream
+	 */
+	private class RowWriter implements NgramRecordConsumer {
+		private final Map<String, Integer> ids;
+		private final int idWidth;
+		private final DataOutputStream out;
+		private final DataOutputStream countsOut;
+		private final int[] tuple = new int[n];
+		private final int[] previous = new int[n];
+		private int[] sparse = new int[n * 16];
+		private long size = 0;
+
+		RowWriter(Map<String, Integer> ids, int idWidth, DataOutputStream out, DataOutputStream countsOut) {
+			this.ids = ids;
+			this.idWidth = idWidth;
+			this.out = out;
+			this.countsOut = countsOut;
+		}
+
+		@Override
+		public void accept(NgramRecord record) {
+			for (int i = 0; i < n; i++) {
+				tuple[i] = ids.get(record.getWord(i).toString());
+			}
+			// The aggregator sorts on the words joined by a NUL byte, which sorts like the word ids
+			if (size > 0 && compare(previous, tuple) >= 0) {
+				throw new IllegalStateException("N-grams are not sorted on their words: " + record.getWords());
+			}
+			if (size % BLOCK_ROWS == 0) {
+				int block = (int) (size / BLOCK_ROWS);
+				if (sparse.length < (block + 1) * n) {
+					sparse = Arrays.copyOf(sparse, sparse.length * 2);
+				}
+				System.arraycopy(tuple, 0, sparse, block * n, n);
+			}
+			try {
+				for (int id : tuple) {
+					for (int i = idWidth - 1; i >= 0; i--) {
+						out.writeByte(id >>> (8 * i));
+					}
+				}
+				countsOut.writeLong(record.getCount());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			System.arraycopy(tuple, 0, previous, 0, n);
+			size++;
+		}
+
+		int getBlocks() {
+			return (int) ((size + BLOCK_ROWS - 1) / BLOCK_ROWS);
+		}
+	}
+
+	/**
+	 * Front-codes the sorted words: the offsets of the blocks, followed by every
+	 * word as the length of the prefix it shares with the previous word of its
+	 * block, the length of the rest and the rest itself
+	 */
+	private static byte[] buildDictionary(List<byte[]> sorted) throws IOException {
+		int blocks = (sorted.size() + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK;
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entriesOut = new DataOutputStream(entries);
+		int[] offsets = new int[blocks + 1];
+		for (int i = 0; i < sorted.size(); i++) {
+			byte[] word = sorted.get(i);
+			int shared = 0;
+			if (i % WORDS_PER_BLOCK == 0) {
+				offsets[i / WORDS_PER_BLOCK] = entriesOut.size();
+			} else {
+				byte[] previous = sorted.get(i - 1);
+				int length = Math.min(previous.length, word.length);
+				while (shared < length && previous[shared] == word[shared]) {
+					shared++;
+				}
+			}
+			entriesOut.writeShort(shared);
+			entriesOut.writeShort(word.length - shared);
+			entriesOut.write(word, shared, word.length - shared);
+		}
+		offsets[blocks] = entriesOut.size();
+
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(4 * (blocks + 2) + entries.size());
+		DataOutputStream out = new DataOutputStream(dictionary);
+		out.writeInt(blocks);
+		for (int offset : offsets) {
+			out.writeInt(offset);
+		}
+		entries.writeTo(out);
+		// Keep the n-grams after the dictionary aligned
+		while (out.size() % 8 != 0) {
+			out.writeByte(0);
+		}
+		return dictionary.toByteArray();
+	}
+
+	/**
+	 * @return the amount of bytes needed to store the ids of the given amount of
+	 *         words
+	 */
+	static int getIdWidth(int amountOfWords) {
+		if (amountOfWords <= 1 << 8) {
+			return 1;
+		}
+		if (amountOfWords <= 1 << 16) {
+			return 2;
+		}
+		if (amountOfWords <= 1 << 24) {
+			return 3;
+		}
+		return 4;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	private static int compare(int[] a, int[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int comparison = Integer.compare(a[i], b[i]);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	static int compareBytes(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int comparison = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	/*-********************************************-*/
+
+}
@@ -0,0 +1,88 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe histogram of latencies, with a bucket for every power of two
+ * nanoseconds. Percentiles are therefore accurate up to a factor two, which is
+ * enough to see whether inserts take microseconds or milliseconds.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramLatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	public NgramLatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		buckets[BUCKETS - 1 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanNanos() {
+		long amount = count.sum();
+		return amount == 0 ? 0 : (double) totalNanos.sum() / amount;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return upper bound of the bucket containing the percentile, in
+	 *         nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		long amount = count.sum();
+		if (amount == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(amount * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= rank) {
+				return Math.min(getMaxNanos(), i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1);
+			}
+		}
+		return getMaxNanos();
+	}
+
+	@Override
+	public String toString() {
+		return formatNanos(getMeanNanos()) + " avg, " + formatNanos(getPercentileNanos(99)) + " p99, "
+				+ formatNanos(getMaxNanos()) + " max";
+	}
+
+	static String formatNanos(double nanos) {
+		if (nanos >= 1e9) {
+			return String.format("%.1fs", nanos / 1e9);
+		}
+		if (nanos >= 1e6) {
+			return String.format("%.1fms", nanos / 1e6);
+		}
+		return String.format("%.1fus", nanos / 1e3);
+	}
+
+}
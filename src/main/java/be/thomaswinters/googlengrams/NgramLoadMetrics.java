@@ -0,0 +1,460 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.pos.WordTypeCalculator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of a load, shared by the loaders and connectors of
+ * all files loaded at once. They can be read over JMX, and printed as a
+ * periodic progress line with an estimate of the remaining time based on the
+ * bytes of the files read so far.
+ *
+ * Lines are counted on the hot path by {@link Counter}s, which are owned by a
+ * single thread and only add to the shared totals every
+ * {@value Counter#PUBLISH_EVERY} counts, so the totals lag behind slightly
+ * while loading.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramLoadMetrics implements NgramLoadMetricsMBean {
+
+	/**
+	 * Reasons for not storing an n-gram. All reasons but the minimum
+	 * occurrences are counted per line, the minimum occurrences per n-gram.
+	 * Lines are rejected by the sketch if the count sketch shows their n-gram
+	 * can not reach the minimum occurrences. N-grams are unstorable if the
+	 * n-gram table or the words table can not store one of their words exactly.
+	 */
+	public enum Reject {
+		YEAR, REGEX, CONSTRAINER, MIN_OCCURRENCES, SKETCH, UNSTORABLE
+	}
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final long startNanos = System.nanoTime();
+
+	private final LongAdder linesRead = new LongAdder();
+	private final LongAdder ngramsStored = new LongAdder();
+	private final LongAdder rowsWritten = new LongAdder();
+	private final LongAdder insertFailures = new LongAdder();
+	private final LongAdder[] rejected = new LongAdder[Reject.values().length];
+	private final NgramLatencyHistogram insertLatency = new NgramLatencyHistogram();
+	private final NgramLatencyHistogram batchLatency = new NgramLatencyHistogram();
+
+	private final Set<NgramCsvReader> activeReaders = ConcurrentHashMap.newKeySet();
+	private final LongAdder finishedBytes = new LongAdder();
+	private final LongAdder skippedBytes = new LongAdder();
+	private final LongAdder filesFinished = new LongAdder();
+	private volatile long totalBytes = 0;
+
+	private volatile WordTypeCalculator wordTypeCalculator;
+	private volatile boolean sketched = false;
+	private ObjectName objectName;
+	private ScheduledExecutorService reporter;
+
+	/*-********************************************-*/
+
+	public NgramLoadMetrics() {
+		for (int i = 0; i < rejected.length; i++) {
+			rejected[i] = new LongAdder();
+		}
+	}
+
+	/*-********************************************-*
+	 *  Recording
+	*-********************************************-*/
+
+	Counter newLineCounter() {
+		return new Counter(linesRead);
+	}
+
+	Counter newRejectCounter(Reject reason) {
+		return new Counter(rejected[reason.ordinal()]);
+	}
+
+	Counter newStoredCounter() {
+		return new Counter(ngramsStored);
+	}
+
+	Counter newWrittenCounter() {
+		return new Counter(rowsWritten);
+	}
+
+	void recordInsert(long nanos) {
+		insertLatency.record(nanos);
+	}
+
+	void recordBatch(long nanos) {
+		batchLatency.record(nanos);
+	}
+
+	void recordInsertFailure() {
+		insertFailures.increment();
+	}
+
+	void recordRejected(Reject reason) {
+		rejected[reason.ordinal()].increment();
+	}
+
+	void startReading(NgramCsvReader reader) {
+		activeReaders.add(reader);
+	}
+
+	void finishReading(NgramCsvReader reader) {
+		if (activeReaders.remove(reader)) {
+			finishedBytes.add(reader.getLength());
+			filesFinished.increment();
+		}
+	}
+
+	/**
+	 * Counts a file that does not need to be loaded as read, without counting
+	 * it for the reading speed
+	 */
+	public void skip(long bytes) {
+		finishedBytes.add(bytes);
+		skippedBytes.add(bytes);
+		filesFinished.increment();
+	}
+
+	/**
+	 * @param totalBytes
+	 *            size of all files to load, used to estimate the remaining time
+	 */
+	public void setTotalBytes(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * Makes the metrics report the hit rate of the word type cache
+	 */
+	public void setWordTypeCalculator(WordTypeCalculator wordTypeCalculator) {
+		this.wordTypeCalculator = wordTypeCalculator;
+	}
+
+	/**
+	 * Makes the metrics report the false positives of the count sketch. With a
+	 * sketch, every n-gram rejected by the minimum occurrences was wrongly let
+	 * through by the sketch.
+	 */
+	public void setSketched(boolean sketched) {
+		this.sketched = sketched;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Reporting
+	*-********************************************-*/
+
+	/**
+	 * Registers the metrics as an MBean with the given name, e.g.
+	 * <code>be.thomaswinters.googlengrams:type=NgramLoadMetrics,n=2</code>
+	 */
+	public void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			System.err.println("Could not register the load metrics over JMX: " + e);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Prints the progress line every <code>intervalSeconds</code> seconds on a
+	 * background thread
+	 */
+	public void startReporting(long intervalSeconds, PrintStream out) {
+		startReporting(intervalSeconds, out, "");
+	}
+
+	/**
+	 * Prints the progress line every interval, starting with the given label,
+	 * e.g. to tell the loads of different n-gram sizes apart
+	 */
+	public synchronized void startReporting(long intervalSeconds, PrintStream out, String label) {
+		if (intervalSeconds <= 0 || reporter != null) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ngram-progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> out.println(label + getProgressLine()), intervalSeconds, intervalSeconds,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops printing the progress line and unregisters the MBean
+	 */
+	public synchronized void close() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// Already unregistered
+			}
+			objectName = null;
+		}
+	}
+
+	@Override
+	public String getProgressLine() {
+		double seconds = getElapsedSeconds();
+		long eta = getEtaSeconds();
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("Progress %.1f%% (%s of %s, %d files done), %,d lines (%,.0f lines/s), %,d stored, "
+				+ "%,d written", 100 * getProgress(), formatBytes(getBytesRead()), formatBytes(totalBytes),
+				getFilesFinished(), getLinesRead(), getLinesRead() / Math.max(seconds, 1e-3), getNgramsStored(),
+				getRowsWritten()));
+		if (getInsertFailures() > 0) {
+			b.append(String.format(" (%,d FAILED)", getInsertFailures()));
+		}
+		b.append(String.format(", rejected %,d year / %,d regex / %,d constrainer / %,d minOccurrences",
+				getRejectedByYear(), getRejectedByRegex(), getRejectedByConstrainer(), getRejectedByMinOccurrences()));
+		if (sketched) {
+			b.append(String.format(" / %,d sketch (%.1f%% false positives)", getRejectedBySketch(),
+					100 * getSketchFalsePositiveRate()));
+		}
+		if (getRejectedAsUnstorable() > 0) {
+			b.append(String.format(" / %,d unstorable", getRejectedAsUnstorable()));
+		}
+		b.append(", insert " + insertLatency);
+		b.append(String.format(", %,d batches ", getBatches()) + batchLatency);
+		if (wordTypeCalculator != null) {
+			b.append(String.format(", POS cache %.1f%% hits", 100 * getPosCacheHitRate()));
+		}
+		b.append(", ETA " + (eta < 0 ? "unknown" : formatSeconds(eta)));
+		return b.toString();
+	}
+
+	private static String formatBytes(long bytes) {
+		if (bytes >= 1L << 30) {
+			return String.format("%.1f GB", bytes / (double) (1L << 30));
+		}
+		return String.format("%.1f MB", bytes / (double) (1L << 20));
+	}
+
+	private static String formatSeconds(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	@Override
+	public long getLinesRead() {
+		return linesRead.sum();
+	}
+
+	/**
+	 * @return bytes of the files read so far. Compressed files are counted by
+	 *         their compressed bytes.
+	 */
+	@Override
+	public long getBytesRead() {
+		long bytes = finishedBytes.sum();
+		for (NgramCsvReader reader : activeReaders) {
+			bytes += reader.getBytesRead();
+		}
+		return bytes;
+	}
+
+	@Override
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	@Override
+	public double getProgress() {
+		return totalBytes <= 0 ? 0 : Math.min(1, (double) getBytesRead() / totalBytes);
+	}
+
+	/**
+	 * @return estimated amount of seconds until all files are read, based on the
+	 *         average reading speed so far, or -1 if unknown
+	 */
+	@Override
+	public long getEtaSeconds() {
+		long bytes = getBytesRead();
+		double bytesPerSecond = (bytes - skippedBytes.sum()) / getElapsedSeconds();
+		if (totalBytes <= 0 || bytesPerSecond <= 0) {
+			return -1;
+		}
+		return (long) (Math.max(0, totalBytes - bytes) / bytesPerSecond);
+	}
+
+	private double getElapsedSeconds() {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	@Override
+	public long getFilesFinished() {
+		return filesFinished.sum();
+	}
+
+	@Override
+	public long getNgramsStored() {
+		return ngramsStored.sum();
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return rowsWritten.sum();
+	}
+
+	@Override
+	public long getInsertFailures() {
+		return insertFailures.sum();
+	}
+
+	public long getRejected(Reject reason) {
+		return rejected[reason.ordinal()].sum();
+	}
+
+	@Override
+	public long getRejectedByYear() {
+		return getRejected(Reject.YEAR);
+	}
+
+	@Override
+	public long getRejectedByRegex() {
+		return getRejected(Reject.REGEX);
+	}
+
+	@Override
+	public long getRejectedByConstrainer() {
+		return getRejected(Reject.CONSTRAINER);
+	}
+
+	@Override
+	public long getRejectedByMinOccurrences() {
+		return getRejected(Reject.MIN_OCCURRENCES);
+	}
+
+	@Override
+	public long getRejectedBySketch() {
+		return getRejected(Reject.SKETCH);
+	}
+
+	@Override
+	public long getRejectedAsUnstorable() {
+		return getRejected(Reject.UNSTORABLE);
+	}
+
+	/**
+	 * @return the fraction of the n-grams let through by the count sketch that
+	 *         still did not reach the minimum occurrences, or 0 if no sketch is
+	 *         used
+	 */
+	@Override
+	public double getSketchFalsePositiveRate() {
+		if (!sketched) {
+			return 0;
+		}
+		long falsePositives = getRejectedByMinOccurrences();
+		return falsePositives / (double) Math.max(1, falsePositives + getNgramsStored());
+	}
+
+	public NgramLatencyHistogram getInsertLatency() {
+		return insertLatency;
+	}
+
+	public NgramLatencyHistogram getBatchLatency() {
+		return batchLatency;
+	}
+
+	@Override
+	public double getInsertLatencyMeanMicros() {
+		return insertLatency.getMeanNanos() / 1e3;
+	}
+
+	@Override
+	public double getInsertLatencyP99Micros() {
+		return insertLatency.getPercentileNanos(99) / 1e3;
+	}
+
+	@Override
+	public long getBatches() {
+		return batchLatency.getCount();
+	}
+
+	@Override
+	public double getBatchLatencyMeanMillis() {
+		return batchLatency.getMeanNanos() / 1e6;
+	}
+
+	@Override
+	public double getBatchLatencyP99Millis() {
+		return batchLatency.getPercentileNanos(99) / 1e6;
+	}
+
+	/**
+	 * @return the fraction of word type lookups answered by the cache, or 0 if
+	 *         no word types are looked up
+	 */
+	@Override
+	public double getPosCacheHitRate() {
+		WordTypeCalculator calculator = wordTypeCalculator;
+		return calculator == null ? 0 : calculator.getCacheStats().hitRate();
+	}
+
+	/*-********************************************-*/
+
+	/**
+	 * Count owned by a single thread, added to a shared total in steps, such that
+	 * counting a line does not contend with the other threads
+	 */
+	static final class Counter {
+		static final int PUBLISH_EVERY = 1024;
+
+		private final LongAdder total;
+		private int pending = 0;
+
+		private Counter(LongAdder total) {
+			this.total = total;
+		}
+
+		void increment() {
+			if (++pending >= PUBLISH_EVERY) {
+				publish();
+			}
+		}
+
+		/**
+		 * Adds the counts since the last publish to the total. Should be called
+		 * by the owning thread, or after it stopped.
+		 */
+		void publish() {
+			total.add(pending);
+			pending = 0;
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package be.thomaswinters.googlengrams;
+
+/**
+ * Attributes of {@link NgramLoadMetrics} exposed over JMX
+ *
+ * @author Thomas Winters
+ *
+ */
+public interface NgramLoadMetricsMBean {
+
+	long getLinesRead();
+
+	long getBytesRead();
+
+	long getTotalBytes();
+
+	double getProgress();
+
+	long getEtaSeconds();
+
+	long getFilesFinished();
+
+	long getNgramsStored();
+
+	long getRowsWritten();
+
+	long getInsertFailures();
+
+	long getRejectedByYear();
+
+	long getRejectedByRegex();
+
+	long getRejectedByConstrainer();
+
+	long getRejectedByMinOccurrences();
+
+	long getRejectedBySketch();
+
+	long getRejectedAsUnstorable();
+
+	double getSketchFalsePositiveRate();
+
+	double getInsertLatencyMeanMicros();
+
+	double getInsertLatencyP99Micros();
+
+	long getBatches();
+
+	double getBatchLatencyMeanMillis();
+
+	double getBatchLatencyP99Millis();
+
+	double getPosCacheHitRate();
+
+	String getProgressLine();
+
+}
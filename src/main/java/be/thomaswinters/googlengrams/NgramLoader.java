@@ -1,23 +1,45 @@
 package be.thomaswinters.googlengrams;
 
+import be.thomaswinters.googlengrams.NgramLoadMetrics.Counter;
+import be.thomaswinters.googlengrams.NgramLoadMetrics.Reject;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.util.List;
 
 /**
- * Simple class that has a CSV reader to read Google n-gram formatted files and output this to a MySQL database
+ * Simple class that has a CSV reader to read Google n-gram formatted files and output this to a sink, e.g. a MySQL database
  * @author Thomas Winters
  *
  */
 public abstract class NgramLoader {
 
 	private final NgramCsvReader reader;
-	private final NgramMySQLConnector connector;
+	private final NgramSink sink;
+	private int pipelineQueueDepth = 0;
+	private int pipelineBatchSize;
+	private NgramPipeline pipeline;
+	private NgramCheckpoint checkpoint;
+	private int checkpointEvery;
+	private int sinceCheckpoint = 0;
 
-	public NgramLoader(NgramCsvReader reader, NgramMySQLConnector connector) {
+	private NgramLoadMetrics metrics;
+	private Counter lines;
+	private Counter stored;
+	private Counter written;
+	private final Counter[] rejected = new Counter[Reject.values().length];
+
+	public NgramLoader(NgramCsvReader reader, NgramSink sink) {
 		this.reader = reader;
-		this.connector = connector;
+		this.sink = sink;
+		setMetrics(new NgramLoadMetrics());
+	}
+
+	public NgramLoader(NgramCsvReader reader, NgramMySQLConnector connector) {
+		this(reader, new NgramMySQLSink(connector));
 	}
 
 	public NgramLoader() throws NumberFormatException, ClassNotFoundException, URISyntaxException, SQLException {
@@ -27,22 +49,220 @@ public abstract class NgramLoader {
 						System.getenv("ngram_db_password"), System.getenv("ngram_db_databaseName")));
 	}
 
+	/**
+	 * Makes the loader parse, filter and write on separate threads, connected by
+	 * queues holding at most <code>queueDepth</code> batches of
+	 * <code>batchSize</code> elements.
+	 */
+	public void enablePipeline(int queueDepth, int batchSize) {
+		this.pipelineQueueDepth = Math.max(1, queueDepth);
+		this.pipelineBatchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Makes the loader continue from the given checkpoint, and save a new
+	 * checkpoint every <code>checkpointEvery</code> written n-grams
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sink is not {@link NgramSink#isResumable() resumable}
+	 */
+	public void enableCheckpoints(NgramCheckpoint checkpoint, int checkpointEvery) {
+		if (!sink.isResumable()) {
+			throw new IllegalArgumentException(
+					"Loading into " + sink.getClass().getSimpleName() + " can not be resumed");
+		}
+		this.checkpoint = checkpoint;
+		this.checkpointEvery = Math.max(1, checkpointEvery);
+	}
+
+	/**
+	 * Makes the loader count its lines, n-grams and inserts in the given
+	 * metrics, which can be shared with loaders of other files
+	 */
+	public void setMetrics(NgramLoadMetrics metrics) {
+		this.metrics = metrics;
+		this.lines = metrics.newLineCounter();
+		this.stored = metrics.newStoredCounter();
+		this.written = metrics.newWrittenCounter();
+		for (Reject reason : Reject.values()) {
+			rejected[reason.ordinal()] = metrics.newRejectCounter(reason);
+		}
+		sink.setMetrics(metrics);
+	}
+
+	public NgramLoadMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stores the n-grams of all lines of the reader and closes the sink, also if
+	 * loading fails, such that its connection is released. A loader without a
+	 * reader only stores what it collected before, e.g. from the files of other
+	 * loaders, when it ends storing.
+	 */
 	public void execute() {
+		if (reader != null) {
+			metrics.startReading(reader);
+		}
+		try {
+			load();
+		} finally {
+			lines.publish();
+			stored.publish();
+			written.publish();
+			for (Counter counter : rejected) {
+				counter.publish();
+			}
+			if (reader != null) {
+				metrics.finishReading(reader);
+			}
+		}
+	}
 
-		reader.convert(e -> f -> g -> store(e, f, g));
+	private void load() {
+		try {
+			storeAll();
+		} catch (RuntimeException | Error e) {
+			try {
+				sink.close();
+			} catch (IOException | RuntimeException closeException) {
+				e.addSuppressed(closeException);
+			}
+			throw e;
+		}
 
 		try {
-			endStoring();
-			connector.close();
-		} catch (SQLException e1) {
+			sink.close();
+		} catch (IOException e1) {
 			e1.printStackTrace();
-			throw new RuntimeException(e1);
+			throw new UncheckedIOException(e1);
+		}
+	}
+
+	private void storeAll() {
+		if (pipelineQueueDepth > 0 && reader != null) {
+			pipeline = new NgramPipeline(reader, this, sink, pipelineQueueDepth, pipelineBatchSize);
+			try {
+				pipeline.run();
+			} finally {
+				pipeline = null;
+			}
+		} else {
+			if (reader != null) {
+				reader.convert(getStartOffset(), this::acceptsLine, this::store);
+			}
+			endStoring();
+		}
+
+		if (checkpoint != null) {
+			sink.checkpoint(checkpoint, true);
+			try {
+				checkpoint.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
 		}
+	}
+
+	/**
+	 * Counts a line read by the reader, and whether its year is accepted
+	 */
+	boolean acceptsLine(int year) {
+		lines.increment();
+		if (isAcceptedYear(year)) {
+			return true;
+		}
+		reject(Reject.YEAR);
+		return false;
+	}
+
+	/**
+	 * Counts a line or n-gram that is not stored. Every reason should only be
+	 * counted by one thread.
+	 */
+	protected void reject(Reject reason) {
+		rejected[reason.ordinal()].increment();
+	}
+
+	/**
+	 * Lines with a year that is not accepted are skipped before their words are
+	 * decoded
+	 */
+	protected boolean isAcceptedYear(int year) {
+		return true;
+	}
+
+	/**
+	 * Called by the pipeline with a batch of lines before they are stored one by
+	 * one, such that work can be done for the whole batch at once
+	 */
+	protected void prepare(NgramRecord[] records, int size) {
+	}
 
+	/**
+	 * Handles a line of the n-gram file. The record is reused for the next line.
+	 */
+	protected void store(NgramRecord record) {
+		store(record.getWords(), record.getYear(), record.getCount());
 	}
 
 	protected void store(List<String> words, int year, long count) {
-		connector.addCount(words, count);
+		store(words, count, null, -1);
+	}
+
+	/**
+	 * Stores an n-gram, after which loading can be resumed from the given offset
+	 * in the file, or -1 if unknown
+	 *
+	 * @param yearCounts
+	 *            the counts per year encoded by {@link NgramYearCounts}, or null
+	 *            if they are not kept
+	 */
+	protected void store(List<String> words, long count, byte[] yearCounts, long resumeOffset) {
+		stored.increment();
+		if (pipeline != null) {
+			pipeline.emit(words, count, yearCounts, resumeOffset);
+		} else {
+			write(words, count, yearCounts, resumeOffset);
+		}
+	}
+
+	/**
+	 * Writes a stored n-gram to the sink, and saves a checkpoint if enough
+	 * n-grams have been written since the last one. Called by the writer stage
+	 * when pipelined.
+	 */
+	void write(List<String> words, long count, byte[] yearCounts, long resumeOffset) {
+		long start = System.nanoTime();
+		sink.accept(words, count, yearCounts);
+		metrics.recordInsert(System.nanoTime() - start);
+		written.increment();
+		if (checkpoint != null && resumeOffset >= 0 && ++sinceCheckpoint >= checkpointEvery) {
+			checkpoint.advance(resumeOffset, words);
+			sink.checkpoint(checkpoint, false);
+			sinceCheckpoint = 0;
+		}
+	}
+
+	protected NgramSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the offset in the file to start reading from
+	 */
+	long getStartOffset() {
+		return checkpoint == null ? 0 : checkpoint.getStartOffset();
+	}
+
+	/**
+	 * Sends every stored count still waiting in a batch to the sink. When
+	 * pipelined, the writer stage flushes once it has written everything.
+	 */
+	protected void flush() {
+		if (pipeline == null) {
+			sink.flush();
+		}
 	}
 	
 	protected abstract void endStoring();
@@ -1,9 +1,10 @@
 package be.thomaswinters.googlengrams;
 
+import be.thomaswinters.googlengrams.NgramLoadMetrics.Reject;
+
 import java.net.URISyntaxException;
 import java.sql.*;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -16,6 +17,33 @@ import java.util.stream.Collectors;
 public class NgramMySQLConnector {
 
 	public static final long AMOUNT_OF_1GRAMS_2008 = 561087129l;
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	public static final int DEFAULT_COMMIT_EVERY = 0;
+	private static final int MAX_CACHED_STATEMENTS = 32;
+	/** Maximum amount of n-grams looked up in one query by {@link #getCounts(Collection)} */
+	private static final int MAX_LOOKUP_SIZE = 512;
+
+	/**
+	 * Ways of sending added counts to the database
+	 */
+	public enum InsertMode {
+		/** Bulk load if the server allows LOAD DATA LOCAL INFILE, batch otherwise */
+		AUTO,
+		/** Batched insert statements */
+		BATCH,
+		/** LOAD DATA LOCAL INFILE */
+		INFILE
+	}
+
+	/**
+	 * Layouts of the n-gram tables
+	 */
+	public enum Schema {
+		/** Every row contains the words of the n-gram as strings */
+		WORDS,
+		/** Every row contains the ids of the words, see {@link NgramMySQLIdConnector} */
+		IDS
+	}
 
 	/*-********************************************-*
 	 *  Instance variables
@@ -23,25 +51,99 @@ public class NgramMySQLConnector {
 	private final Connection connection;
 
 	private final int n;
-	private final String addCountQuery;
-	private final String getCountQuery;
+	private String tableName;
+	private String getCountQuery;
+	private boolean storingYearCounts = false;
+	private final Set<String> unstorable = new HashSet<>();
+
+	private final int batchSize;
+	private final int commitEvery;
+	private PreparedStatement addCountStatement;
+	private int pendingRows = 0;
+	private int pendingBatches = 0;
+	private boolean checkpointing = false;
+	private NgramLoadMetrics metrics;
+	private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() <= MAX_CACHED_STATEMENTS) {
+				return false;
+			}
+			try {
+				eldest.getValue().close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+	};
 
 	/*-********************************************-*/
 
 	/*-********************************************-*
 	 *  Constructor
 	*-********************************************-*/
-	public NgramMySQLConnector(int n, Connection connection)
+	/**
+	 * Creates a connector that groups added counts in JDBC batches of
+	 * <code>batchSize</code> rows, and commits a transaction every
+	 * <code>commitEvery</code> batches. A <code>commitEvery</code> of 0 keeps the
+	 * connection in autocommit mode.
+	 */
+	public NgramMySQLConnector(int n, Connection connection, int batchSize, int commitEvery)
 			throws ClassNotFoundException, URISyntaxException, SQLException {
 		this.connection = connection;
 		this.n = n;
-		this.addCountQuery = buildAddQuery(n);
+		this.tableName = n + "grams";
 		this.getCountQuery = buildGetQuery(n);
+		this.batchSize = Math.max(1, batchSize);
+		this.commitEvery = Math.max(0, commitEvery);
+		if (this.commitEvery > 0) {
+			connection.setAutoCommit(false);
+		}
+	}
+
+	public NgramMySQLConnector(int n, Connection connection)
+			throws ClassNotFoundException, URISyntaxException, SQLException {
+		this(n, connection, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_EVERY);
+	}
+
+	public NgramMySQLConnector(int n, String host, int port, String username, String password, String databaseName,
+			int batchSize, int commitEvery) throws ClassNotFoundException, URISyntaxException, SQLException {
+		this(n, createConnection(host, port, username, password, databaseName), batchSize, commitEvery);
 	}
 
 	public NgramMySQLConnector(int n, String host, int port, String username, String password, String databaseName)
 			throws ClassNotFoundException, URISyntaxException, SQLException {
-		this(n, createConnection(host, port, username, password, databaseName));
+		this(n, host, port, username, password, databaseName, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_EVERY);
+	}
+
+	/**
+	 * Creates a connector adding counts using the given insert mode. In
+	 * {@link InsertMode#AUTO} mode, the bulk loader is used whenever the server
+	 * allows it.
+	 */
+	public static NgramMySQLConnector create(int n, Connection connection, InsertMode insertMode, int batchSize,
+			int infileChunkSize, int commitEvery) throws ClassNotFoundException, URISyntaxException, SQLException {
+		return create(n, connection, Schema.WORDS, insertMode, batchSize, infileChunkSize, commitEvery, null);
+	}
+
+	/**
+	 * Creates a connector storing n-grams in the given schema. The
+	 * {@link Schema#IDS} schema always adds counts in batches, caching word ids
+	 * in the given map.
+	 */
+	public static NgramMySQLConnector create(int n, Connection connection, Schema schema, InsertMode insertMode,
+			int batchSize, int infileChunkSize, int commitEvery, Map<String, Integer> wordIds)
+			throws ClassNotFoundException, URISyntaxException, SQLException {
+		if (schema == Schema.IDS) {
+			return new NgramMySQLIdConnector(n, connection, batchSize, commitEvery, wordIds);
+		}
+		if (insertMode == InsertMode.INFILE
+				|| (insertMode == InsertMode.AUTO && NgramMySQLInfileConnector.isLocalInfileAllowed(connection))) {
+			return new NgramMySQLInfileConnector(n, connection, infileChunkSize, commitEvery);
+		}
+		return new NgramMySQLConnector(n, connection, batchSize, commitEvery);
 	}
 	/*-********************************************-*/
 
@@ -53,43 +155,101 @@ public class NgramMySQLConnector {
 		// Create driver
 		Class.forName("com.mysql.jdbc.Driver");
 
-		String jdbUrl = "jdbc:mysql://" + host + ":" + port + "/" + databaseName;// +
-																					// jdbUri.getPath();
+		// Let the driver rewrite batched inserts into multi-row inserts
+		String jdbUrl = "jdbc:mysql://" + host + ":" + port + "/" + databaseName
+				+ "?rewriteBatchedStatements=true&allowLoadLocalInfile=true";
 		return DriverManager.getConnection(jdbUrl, username, password);
 	}
 
 	protected Connection getConnection() {
 		return connection;
 	}
+
+	/**
+	 * Makes the connector record the latency of its batches and its failed
+	 * inserts in the given metrics
+	 */
+	public void setMetrics(NgramLoadMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	protected NgramLoadMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Only commits added rows together with a checkpoint, instead of every
+	 * <code>commitEvery</code> batches and on flushing. As the rows after the
+	 * last checkpoint are then never committed, resuming from the checkpoint
+	 * adds every count exactly once. Should be called before adding counts.
+	 */
+	public void enableCheckpoints() throws SQLException {
+		this.checkpointing = true;
+		connection.setAutoCommit(false);
+	}
+
+	protected boolean isCheckpointing() {
+		return checkpointing;
+	}
 	/*-********************************************-*/
 
 	/*-********************************************-*
 	 *  Query building
 	*-********************************************-*/
 
-	private String buildAddQuery(int n) {
-		if (n == 1) {
-			return "insert into 1grams (word1, count) values (?, ?)";
-		}
+	/**
+	 * Also stores the counts per year of every added n-gram in the
+	 * <code>years</code> BLOB column, encoded by {@link NgramYearCounts}. Should
+	 * be called before adding counts.
+	 */
+	public void enableYearCounts() {
+		this.storingYearCounts = true;
+	}
+
+	public boolean isStoringYearCounts() {
+		return storingYearCounts;
+	}
+
+	/**
+	 * Makes the connector use the given n-gram table instead of the
+	 * <code>&lt;n&gt;grams</code> table, e.g. a staging table created by
+	 * {@link NgramSchemaManager}. Should be called before adding counts.
+	 */
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+		this.getCountQuery = buildGetQuery(n);
+	}
+
+	/**
+	 * Rows are upserted, such that the counts of an n-gram occurring in several
+	 * files are summed, if the table has a unique key on the words. The counts
+	 * per year can not be summed, so they are only stored with the global
+	 * aggregation, which inserts every n-gram once.
+	 */
+	protected String buildAddQuery(int n) {
 		StringBuilder b = new StringBuilder();
 		b.append("insert into ");
 		b.append(getDatabaseName());
 		b.append(" (");
 		for (int i = 1; i <= n; i++) {
-			b.append("word" + i + ", ");
+			b.append(getWordColumn(i) + ", ");
 		}
-		b.append("count) values (");
-		for (int i = 1; i <= n + 1; i++) {
+		b.append(storingYearCounts ? "count, years) values (" : "count) values (");
+		int columns = storingYearCounts ? n + 2 : n + 1;
+		for (int i = 1; i <= columns; i++) {
 			b.append("?");
-			if (i <= n) {
+			if (i < columns) {
 				b.append(", ");
 			}
 		}
-		b.append(")");
+		b.append(") on duplicate key update count = count + values(count)");
+		if (storingYearCounts) {
+			b.append(", years = values(years)");
+		}
 		return b.toString();
 	}
 
-	private String buildGetQuery(int n) {
+	protected String buildGetQuery(int n) {
 		// SELECT * FROM 2grams WHERE word1 LIKE ? AND word2 LIKE ?
 		StringBuilder b = new StringBuilder();
 		b.append("SELECT * FROM ");
@@ -99,10 +259,60 @@ public class NgramMySQLConnector {
 			if (i > 1) {
 				b.append(" AND");
 			}
-			b.append(" word" + i + " LIKE ?");
+			b.append(" " + getWordColumn(i) + " LIKE ?");
 		}
 		return b.toString();
 	}
+
+	/**
+	 * @param column
+	 *            column of the n-gram table to select
+	 * @return query selecting the column of the rows with exactly the given
+	 *         words, such that the index on the words can be used
+	 */
+	protected String buildGetExactQuery(int n, String column) {
+		// SELECT count FROM 2grams WHERE word1 = ? AND word2 = ?
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT " + column + " FROM ");
+		b.append(getDatabaseName());
+		b.append(" WHERE");
+		for (int i = 1; i <= n; i++) {
+			if (i > 1) {
+				b.append(" AND");
+			}
+			b.append(" " + getWordColumn(i) + " = ?");
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return query selecting the word columns and the count of the rows whose
+	 *         word columns equal one of <code>size</code> tuples of values, such
+	 *         that the index on the word columns can be used
+	 */
+	protected String buildGetCountsQuery(int n, int size) {
+		// SELECT word1, word2, count FROM 2grams WHERE (word1, word2) IN ((?, ?), (?, ?))
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT ");
+		for (int i = 1; i <= n; i++) {
+			b.append(getWordColumn(i) + ", ");
+		}
+		b.append("count FROM ");
+		b.append(getDatabaseName());
+		b.append(" WHERE (");
+		for (int i = 1; i <= n; i++) {
+			b.append(getWordColumn(i));
+			b.append(i < n ? ", " : ") IN (");
+		}
+		for (int row = 0; row < size; row++) {
+			b.append(row > 0 ? ", (" : "(");
+			for (int i = 1; i <= n; i++) {
+				b.append(i < n ? "?, " : "?)");
+			}
+		}
+		b.append(")");
+		return b.toString();
+	}
 	/*-********************************************-*/
 
 	/*-********************************************-*
@@ -110,19 +320,156 @@ public class NgramMySQLConnector {
 	*-********************************************-*/
 
 	public void addCount(List<String> words, long count) {
+		addCount(words, count, null);
+	}
+
+	/**
+	 * Adds the count of the n-gram together with its counts per year, encoded by
+	 * {@link NgramYearCounts}. The counts per year are only stored if
+	 * {@link #enableYearCounts()} was called.
+	 */
+	public void addCount(List<String> words, long count, byte[] yearCounts) {
+		if (isStorable(words)) {
+			addRow(words, count, yearCounts);
+		}
+	}
+
+	/**
+	 * Checks whether the word columns can store every word of the n-gram
+	 * exactly, as in strict mode a single word that can not be stored fails the
+	 * whole batch. N-grams that can not be stored are counted as rejected.
+	 */
+	protected boolean isStorable(List<String> words) {
+		for (String word : words) {
+			if (!NgramSchemaManager.isStorable(word, NgramSchemaManager.getWordLength(n))) {
+				if (unstorable.add(word)) {
+					System.err.println("Skipping the n-grams containing '" + word
+							+ "', as the n-gram table can not store it exactly");
+				}
+				if (metrics != null) {
+					metrics.recordRejected(Reject.UNSTORABLE);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a row with the given values for the word columns to the current batch
+	 */
+	protected void addRow(List<?> key, long count, byte[] yearCounts) {
 		try {
-			// create the mysql insert preparedstatement
-			PreparedStatement addPS = getConnection().prepareStatement(addCountQuery);
+			// reuse the mysql insert preparedstatement
+			if (addCountStatement == null) {
+				addCountStatement = getConnection().prepareStatement(buildAddQuery(n));
+			}
 			for (int i = 1; i <= n; i++) {
-				addPS.setString(i, words.get(i - 1));
+				addCountStatement.setObject(i, key.get(i - 1));
 			}
-			addPS.setLong(n + 1, count);
-
-			// execute the preparedstatement
-			addPS.execute();
+			addCountStatement.setLong(n + 1, count);
+			if (storingYearCounts) {
+				addCountStatement.setBytes(n + 2, yearCounts);
+			}
+			addCountStatement.addBatch();
+			pendingRows++;
 		} catch (Exception e) {
-			System.err.println("Got an exception!");
+			System.err.println("Got an exception while adding " + key + "!");
+			e.printStackTrace();
+			if (metrics != null) {
+				metrics.recordInsertFailure();
+			}
+			return;
+		}
+
+		if (pendingRows >= batchSize) {
+			executeBatch();
+		}
+	}
+
+	/**
+	 * Sends all rows added since the last batch to the database, and commits if
+	 * enough batches have been sent since the last commit.
+	 */
+	private void executeBatch() {
+		if (pendingRows == 0) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			addCountStatement.executeBatch();
+			if (metrics != null) {
+				metrics.recordBatch(System.nanoTime() - start);
+			}
+			pendingRows = 0;
+			pendingBatches++;
+			if (commitEvery > 0 && pendingBatches >= commitEvery && !checkpointing) {
+				commit();
+			}
+		} catch (SQLException e) {
+			System.err.println("Got an exception while executing batch!");
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void commit() throws SQLException {
+		if (commitEvery > 0 && pendingBatches > 0) {
+			getConnection().commit();
+		}
+		pendingBatches = 0;
+	}
+
+	/**
+	 * Sends all rows that are added but not yet sent to the database, without
+	 * committing
+	 */
+	protected void sendPending() {
+		executeBatch();
+	}
+
+	/**
+	 * Sends all added rows and commits them together with the checkpoint, such
+	 * that a checkpoint covers exactly the committed rows. Needs
+	 * {@link #enableCheckpoints()}.
+	 *
+	 * @param checkpoint
+	 * @param finished
+	 *            whether the whole file is loaded
+	 */
+	public void checkpoint(NgramCheckpoint checkpoint, boolean finished) {
+		sendPending();
+		try {
+			if (finished) {
+				checkpoint.saveFinished();
+			} else {
+				checkpoint.save();
+			}
+			flush();
+			getConnection().commit();
+			pendingBatches = 0;
+		} catch (SQLException e) {
+			System.err.println("Got an exception while saving checkpoint!");
 			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Executes all pending batches and commits the open transaction, unless
+	 * rows are only committed with checkpoints.
+	 */
+	public void flush() {
+		executeBatch();
+		if (checkpointing) {
+			return;
+		}
+		try {
+			commit();
+		} catch (SQLException e) {
+			System.err.println("Got an exception while committing!");
+			e.printStackTrace();
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -162,34 +509,158 @@ public class NgramMySQLConnector {
 	/*-********************************************-*
 	 *  Getters
 	*-********************************************-*/
+	/**
+	 * Gets the rows whose words match the given LIKE patterns. The statement is
+	 * reused, so the result set is closed by the next call.
+	 */
 	public ResultSet getRows(List<String> words) throws SQLException {
-		// create the mysql insert preparedstatement
-		PreparedStatement getCountPS = getConnection().prepareStatement(getCountQuery);
+		PreparedStatement statement = getStatement(getCountQuery);
 		for (int i = 1; i <= n; i++) {
-			getCountPS.setString(i, words.get(i - 1));
+			statement.setString(i, words.get(i - 1));
 		}
+		return statement.executeQuery();
+	}
 
-		// execute the preparedstatement
-		return getCountPS.executeQuery();
+	/**
+	 * @return the count of the n-gram with exactly the given words, or 0 if it
+	 *         is not stored
+	 */
+	public long getCount(List<String> words) throws SQLException {
+		return getCounts(Collections.singletonList(words))[0];
+	}
+
+	/**
+	 * Looks up the counts of many n-grams at once, using one query for every
+	 * {@value #MAX_LOOKUP_SIZE} n-grams. Words are compared exactly, also if the
+	 * collation of the word columns is case insensitive.
+	 *
+	 * @param ngrams
+	 * @return the count of every n-gram in the iteration order of the
+	 *         collection, 0 for n-grams that are not stored
+	 */
+	public long[] getCounts(Collection<List<String>> ngrams) throws SQLException {
+		return getCountsByKeys(new ArrayList<>(ngrams));
+	}
+
+	/**
+	 * Looks up the counts of the rows with the given values for the word columns
+	 */
+	protected long[] getCountsByKeys(List<? extends List<?>> keys) throws SQLException {
+		long[] counts = new long[keys.size()];
+		Map<List<String>, Long> totals = new HashMap<>();
+		for (int from = 0; from < keys.size(); from += MAX_LOOKUP_SIZE) {
+			List<? extends List<?>> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_LOOKUP_SIZE));
+			// Padding to a power of two keeps the amount of distinct statements low
+			int size = Integer.highestOneBit(chunk.size());
+			size = size < chunk.size() ? size * 2 : size;
+
+			PreparedStatement statement = getStatement(buildGetCountsQuery(n, size));
+			int parameter = 1;
+			for (int row = 0; row < size; row++) {
+				List<?> key = chunk.get(Math.min(row, chunk.size() - 1));
+				for (int i = 0; i < n; i++) {
+					statement.setObject(parameter++, key.get(i));
+				}
+			}
+			totals.clear();
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					List<String> key = new ArrayList<>(n);
+					for (int i = 1; i <= n; i++) {
+						key.add(result.getString(i));
+					}
+					totals.merge(key, result.getLong(n + 1), Long::sum);
+				}
+			}
+			for (int i = 0; i < chunk.size(); i++) {
+				Long total = totals.get(toStrings(chunk.get(i)));
+				counts[from + i] = total == null ? 0 : total;
+			}
+		}
+		return counts;
 	}
 
+	private static List<String> toStrings(List<?> key) {
+		List<String> strings = new ArrayList<>(key.size());
+		for (Object value : key) {
+			strings.add(String.valueOf(value));
+		}
+		return strings;
+	}
+
+	/**
+	 * Sums the counts of the n-gram with exactly the given words over the years
+	 * in the given range, including both bounds. Only the <code>years</code>
+	 * column of the row is read, so this requires the counts per year to be
+	 * stored.
+	 *
+	 * @param words
+	 * @param fromYear
+	 * @param toYear
+	 * @return the total count, or 0 if the n-gram is not stored
+	 */
+	public long getCount(List<String> words, int fromYear, int toYear) throws SQLException {
+		PreparedStatement statement = getStatement(buildGetExactQuery(n, "years"));
+		for (int i = 1; i <= n; i++) {
+			statement.setString(i, words.get(i - 1));
+		}
+		long total = 0;
+		try (ResultSet result = statement.executeQuery()) {
+			while (result.next()) {
+				byte[] yearCounts = result.getBytes(1);
+				if (yearCounts != null) {
+					total += NgramYearCounts.sum(yearCounts, fromYear, toYear);
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Executes the query with the given arguments. The statement is reused for
+	 * the same query, so the result set is closed by the next call with the same
+	 * query.
+	 */
 	public ResultSet getCustomQuery(String query, String... args) throws SQLException {
-		// create the mysql insert preparedstatement
-		PreparedStatement preparedStatement = getConnection().prepareStatement(query);
+		PreparedStatement statement = getStatement(query);
 		for (int i = 1; i <= args.length; i++) {
-			preparedStatement.setString(i, args[i - 1]);
+			statement.setString(i, args[i - 1]);
 		}
+		return statement.executeQuery();
+	}
 
-		// execute the preparedstatement
-		return preparedStatement.executeQuery();
+	/**
+	 * @return a prepared statement for the query, reused for the
+	 *         {@value #MAX_CACHED_STATEMENTS} most recently used queries and
+	 *         closed together with the connector
+	 */
+	protected PreparedStatement getStatement(String query) throws SQLException {
+		PreparedStatement statement = statements.get(query);
+		if (statement == null || statement.isClosed()) {
+			statement = getConnection().prepareStatement(query);
+			statements.put(query, statement);
+		}
+		return statement;
 	}
 	/*-********************************************-*/
 
 	/*-********************************************-*
 	 *  Helpers
 	*-********************************************-*/
+	/**
+	 * @return the name of the n-gram table
+	 */
 	public String getDatabaseName() {
-		return n + "grams";
+		return tableName;
+	}
+
+	/**
+	 * @param i
+	 *            index of the word, starting from 1
+	 * @return the name of the column storing the i-th word of the n-gram
+	 */
+	protected String getWordColumn(int i) {
+		return "word" + i;
 	}
 
 	/*-********************************************-*/
@@ -200,8 +671,26 @@ public class NgramMySQLConnector {
 				System.getenv("ngram_db_databaseName"));
 	}
 
+	/**
+	 * Flushes the connector and closes its connection, also if flushing fails,
+	 * such that a connection of a pool is always released
+	 */
 	public void close() throws SQLException {
-		connection.close();
+		try {
+			flush();
+		} finally {
+			try {
+				if (addCountStatement != null) {
+					addCountStatement.close();
+				}
+				for (PreparedStatement statement : statements.values()) {
+					statement.close();
+				}
+				statements.clear();
+			} finally {
+				connection.close();
+			}
+		}
 	}
 
 	public int getN() {
@@ -0,0 +1,420 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.NgramLoadMetrics.Reject;
+
+import java.net.URISyntaxException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connector storing n-grams in the normalized layout: every distinct word is
+ * stored once in the <code>words</code> table, and the n-gram tables only
+ * contain the ids of their words and the count. This keeps the rows and the
+ * composite key of the n-gram tables small.
+ *
+ * Added n-grams are buffered per batch, such that the ids of all new words of
+ * a batch can be looked up at once. Known ids are cached on the client, and
+ * this cache can be shared between connectors loading different files. New
+ * words are committed before their ids are cached, such that n-grams committed
+ * by other connectors never refer to words that could still be rolled back.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramMySQLIdConnector extends NgramMySQLConnector {
+
+	public static final String WORDS_TABLE = "words";
+	private static final int LOOKUP_SIZE = 500;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final Map<String, Integer> wordIds;
+	private final NgramTupleBatch pending;
+	private final Set<String> unstorable = new HashSet<>();
+	private Connection wordsConnection;
+	private PreparedStatement insertWordStatement;
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Constructor
+	*-********************************************-*/
+	public NgramMySQLIdConnector(int n, Connection connection, int batchSize, int commitEvery,
+			Map<String, Integer> wordIds) throws ClassNotFoundException, URISyntaxException, SQLException {
+		super(n, connection, batchSize, commitEvery);
+		this.wordIds = wordIds;
+		this.pending = new NgramTupleBatch(Math.max(1, batchSize));
+		this.wordsConnection = connection;
+	}
+
+	public NgramMySQLIdConnector(int n, Connection connection)
+			throws ClassNotFoundException, URISyntaxException, SQLException {
+		this(n, connection, DEFAULT_BATCH_SIZE, DEFAULT_COMMIT_EVERY, new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Creates the words table and the n-gram table of the given size if they do
+	 * not exist yet. Words are compared binary, such that words only differing
+	 * in case get a different id.
+	 */
+	public static void createTables(Connection connection, int n) throws SQLException {
+		createTables(connection, n, false);
+	}
+
+	/**
+	 * Creates the tables, adding a <code>years</code> column to the n-gram table
+	 * if the counts per year are stored
+	 */
+	public static void createTables(Connection connection, int n, boolean yearCounts) throws SQLException {
+		new NgramSchemaManager(connection, n, Schema.IDS, yearCounts).createTables();
+	}
+	/*-********************************************-*/
+
+	/**
+	 * Inserts the new words on the given connection in autocommit mode, instead
+	 * of on the connection of the n-grams. Needed with checkpoints, as the
+	 * n-grams are then only committed at a checkpoint, while the words have to be
+	 * committed right away. The connection is closed together with the
+	 * connector.
+	 */
+	public void setWordsConnection(Connection connection) throws SQLException {
+		connection.setAutoCommit(true);
+		this.wordsConnection = connection;
+	}
+
+	/*-********************************************-*
+	 *  Query building
+	*-********************************************-*/
+
+	/**
+	 * Joins the words table for every word, such that the result has the same
+	 * <code>word1..wordN, count</code> columns as the string layout
+	 */
+	@Override
+	protected String buildGetQuery(int n) {
+		// SELECT w1.word AS word1, w2.word AS word2, g.count FROM 2grams g
+		// JOIN words w1 ON w1.id = g.word1_id JOIN words w2 ON w2.id = g.word2_id
+		// WHERE w1.word LIKE ? AND w2.word LIKE ?
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT ");
+		for (int i = 1; i <= n; i++) {
+			b.append("w" + i + ".word AS word" + i + ", ");
+		}
+		b.append("g.count FROM ");
+		b.append(getDatabaseName());
+		b.append(" g");
+		for (int i = 1; i <= n; i++) {
+			b.append(" JOIN " + WORDS_TABLE + " w" + i + " ON w" + i + ".id = g." + getWordColumn(i));
+		}
+		b.append(" WHERE");
+		for (int i = 1; i <= n; i++) {
+			if (i > 1) {
+				b.append(" AND");
+			}
+			b.append(" w" + i + ".word LIKE ?");
+		}
+		return b.toString();
+	}
+
+	@Override
+	protected String buildGetExactQuery(int n, String column) {
+		// SELECT g.count FROM 2grams g JOIN words w1 ON w1.id = g.word1_id
+		// JOIN words w2 ON w2.id = g.word2_id WHERE w1.word = ? AND w2.word = ?
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT g." + column + " FROM ");
+		b.append(getDatabaseName());
+		b.append(" g");
+		for (int i = 1; i <= n; i++) {
+			b.append(" JOIN " + WORDS_TABLE + " w" + i + " ON w" + i + ".id = g." + getWordColumn(i));
+		}
+		b.append(" WHERE");
+		for (int i = 1; i <= n; i++) {
+			if (i > 1) {
+				b.append(" AND");
+			}
+			b.append(" w" + i + ".word = ?");
+		}
+		return b.toString();
+	}
+
+	private String buildGetByIdsQuery(int n) {
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT * FROM ");
+		b.append(getDatabaseName());
+		b.append(" WHERE");
+		for (int i = 1; i <= n; i++) {
+			if (i > 1) {
+				b.append(" AND");
+			}
+			b.append(" " + getWordColumn(i) + " = ?");
+		}
+		return b.toString();
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Mutators
+	*-********************************************-*/
+
+	@Override
+	public void addCount(List<String> words, long count) {
+		addCount(words, count, null);
+	}
+
+	@Override
+	public void addCount(List<String> words, long count, byte[] yearCounts) {
+		pending.add(words, count, yearCounts, -1);
+		if (pending.isFull()) {
+			writePending();
+		}
+	}
+
+	@Override
+	public void addAllCount(Map<List<String>, Long> map) {
+		map.forEach(this::addCount);
+		flush();
+	}
+
+	/**
+	 * Looks up the ids of the words of all pending n-grams, and adds the
+	 * n-grams as rows of ids. N-grams with a word that did not get an id are
+	 * skipped, as the words table could not store that word exactly, e.g. as it
+	 * is too long, has 4-byte characters or trailing spaces.
+	 */
+	private void writePending() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		try {
+			resolveIds(pending);
+		} catch (SQLException e) {
+			System.err.println("Got an exception while looking up word ids!");
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+		for (int i = 0; i < pending.size(); i++) {
+			List<String> words = pending.getWords(i);
+			List<Integer> ids = new ArrayList<>(words.size());
+			for (String word : words) {
+				Integer id = wordIds.get(word);
+				if (id == null) {
+					break;
+				}
+				ids.add(id);
+			}
+			if (ids.size() < words.size()) {
+				if (getMetrics() != null) {
+					getMetrics().recordRejected(Reject.UNSTORABLE);
+				}
+				continue;
+			}
+			addRow(ids, pending.getCount(i), pending.getYearCounts(i));
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Inserts all words of the batch that are not cached yet, and caches their
+	 * ids. New words are committed before they are looked up, such that only
+	 * committed ids are cached, and connectors loading other files do not wait
+	 * on the locks of these words. As the lookup then sees every committed word,
+	 * a word that is still not found can not be stored exactly.
+	 */
+	private void resolveIds(NgramTupleBatch batch) throws SQLException {
+		Set<String> missing = new LinkedHashSet<>();
+		for (int i = 0; i < batch.size(); i++) {
+			for (String word : batch.getWords(i)) {
+				if (!wordIds.containsKey(word) && !unstorable.contains(word)) {
+					missing.add(word);
+				}
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		if (wordsConnection == getConnection() && isCheckpointing()) {
+			throw new IllegalStateException("Resuming the 'IDS' layout needs a separate connection for the words");
+		}
+		if (insertWordStatement == null) {
+			insertWordStatement = wordsConnection
+					.prepareStatement("INSERT IGNORE INTO " + WORDS_TABLE + " (word) VALUES (?)");
+		}
+		List<String> sorted = new ArrayList<>(missing);
+		Collections.sort(sorted);
+		for (String word : sorted) {
+			insertWordStatement.setString(1, word);
+			insertWordStatement.addBatch();
+		}
+		insertWordStatement.executeBatch();
+		// Also starts a new snapshot for the lookup, which then sees the words of other connectors
+		if (!wordsConnection.getAutoCommit()) {
+			wordsConnection.commit();
+		}
+
+		for (int from = 0; from < sorted.size(); from += LOOKUP_SIZE) {
+			List<String> lookup = sorted.subList(from, Math.min(sorted.size(), from + LOOKUP_SIZE));
+			cacheIds(wordsConnection, lookup);
+		}
+		for (String word : sorted) {
+			if (!wordIds.containsKey(word)) {
+				System.err.println("Skipping the n-grams containing '" + word
+						+ "', as the words table can not store it exactly");
+				unstorable.add(word);
+			}
+		}
+	}
+
+	private void cacheIds(Connection connection, List<String> words) throws SQLException {
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT id, word FROM " + WORDS_TABLE + " WHERE word IN (");
+		for (int i = 0; i < words.size(); i++) {
+			b.append(i > 0 ? ", ?" : "?");
+		}
+		b.append(")");
+		try (PreparedStatement statement = connection.prepareStatement(b.toString())) {
+			for (int i = 1; i <= words.size(); i++) {
+				statement.setString(i, words.get(i - 1));
+			}
+			try (ResultSet result = statement.executeQuery()) {
+				while (result.next()) {
+					wordIds.put(result.getString(2), result.getInt(1));
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void sendPending() {
+		writePending();
+		super.sendPending();
+	}
+
+	@Override
+	public void flush() {
+		writePending();
+		super.flush();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			writePending();
+			if (insertWordStatement != null) {
+				insertWordStatement.close();
+			}
+		} finally {
+			try {
+				if (wordsConnection != getConnection()) {
+					wordsConnection.close();
+				}
+			} finally {
+				super.close();
+			}
+		}
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	/**
+	 * @param word
+	 * @return the id of the word, if it is stored
+	 */
+	public OptionalInt getWordId(String word) throws SQLException {
+		Integer cached = wordIds.get(word);
+		if (cached != null) {
+			return OptionalInt.of(cached);
+		}
+		PreparedStatement statement = getStatement("SELECT id FROM " + WORDS_TABLE + " WHERE word = ?");
+		statement.setString(1, word);
+		try (ResultSet result = statement.executeQuery()) {
+			if (!result.next()) {
+				return OptionalInt.empty();
+			}
+			wordIds.put(word, result.getInt(1));
+			return OptionalInt.of(result.getInt(1));
+		}
+	}
+
+	/**
+	 * Looks up the ids of the words first, using the id cache, and then the
+	 * counts by the primary key of the n-gram table. N-grams containing a word
+	 * that is not stored get count 0 without being queried.
+	 */
+	@Override
+	public long[] getCounts(Collection<List<String>> ngrams) throws SQLException {
+		Set<String> missing = new LinkedHashSet<>();
+		for (List<String> words : ngrams) {
+			for (String word : words) {
+				if (!wordIds.containsKey(word)) {
+					missing.add(word);
+				}
+			}
+		}
+		List<String> lookup = new ArrayList<>(missing);
+		for (int from = 0; from < lookup.size(); from += LOOKUP_SIZE) {
+			cacheIds(getConnection(), lookup.subList(from, Math.min(lookup.size(), from + LOOKUP_SIZE)));
+		}
+
+		List<List<Integer>> keys = new ArrayList<>(ngrams.size());
+		int[] positions = new int[ngrams.size()];
+		int position = 0;
+		for (List<String> words : ngrams) {
+			List<Integer> ids = new ArrayList<>(words.size());
+			for (String word : words) {
+				Integer id = wordIds.get(word);
+				if (id == null) {
+					break;
+				}
+				ids.add(id);
+			}
+			if (ids.size() == words.size()) {
+				positions[keys.size()] = position;
+				keys.add(ids);
+			}
+			position++;
+		}
+
+		long[] counts = new long[ngrams.size()];
+		long[] found = getCountsByKeys(keys);
+		for (int i = 0; i < found.length; i++) {
+			counts[positions[i]] = found[i];
+		}
+		return counts;
+	}
+
+	/**
+	 * Gets the rows of the n-gram with the given word ids, using the primary key
+	 * of the n-gram table. The statement is reused, so the result set is closed
+	 * by the next call.
+	 *
+	 * @param ids
+	 * @return
+	 */
+	public ResultSet getRowsByIds(int... ids) throws SQLException {
+		PreparedStatement statement = getStatement(buildGetByIdsQuery(getN()));
+		for (int i = 1; i <= getN(); i++) {
+			statement.setInt(i, ids[i - 1]);
+		}
+		return statement.executeQuery();
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	@Override
+	protected String getWordColumn(int i) {
+		return "word" + i + "_id";
+	}
+
+	/*-********************************************-*/
+
+}
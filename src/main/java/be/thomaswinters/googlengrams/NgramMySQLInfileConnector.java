@@ -0,0 +1,317 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.ByteArrayInputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Connector that adds counts using MySQL's bulk loader. Added n-grams are
+ * written as tab separated rows into an in-memory buffer, which is streamed to
+ * the server with a LOAD DATA LOCAL INFILE statement every
+ * <code>chunkSize</code> rows.
+ *
+ * LOAD DATA can only skip or replace rows with a duplicate key, so chunks are
+ * loaded into a temporary table first, and then upserted into the n-gram table
+ * such that the counts of n-grams occurring in several files are summed.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramMySQLInfileConnector extends NgramMySQLConnector {
+
+	public static final int DEFAULT_CHUNK_SIZE = 100000;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private String loadQuery;
+	private String mergeQuery;
+	private final int chunkSize;
+	private final int commitEvery;
+
+	private byte[] buffer = new byte[1 << 16];
+	private int bufferLength = 0;
+	private int pendingRows = 0;
+	private int pendingChunks = 0;
+	private Statement loadStatement;
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Constructor
+	*-********************************************-*/
+	public NgramMySQLInfileConnector(int n, Connection connection, int chunkSize, int commitEvery)
+			throws ClassNotFoundException, URISyntaxException, SQLException {
+		super(n, connection, 1, commitEvery);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.commitEvery = Math.max(0, commitEvery);
+	}
+
+	public NgramMySQLInfileConnector(int n, Connection connection)
+			throws ClassNotFoundException, URISyntaxException, SQLException {
+		this(n, connection, DEFAULT_CHUNK_SIZE, DEFAULT_COMMIT_EVERY);
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Query building
+	*-********************************************-*/
+	private String getChunkTable() {
+		return getDatabaseName() + "_chunk";
+	}
+
+	private String getColumns(int n) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 1; i <= n; i++) {
+			b.append(getWordColumn(i) + ", ");
+		}
+		b.append(isStoringYearCounts() ? "count, years" : "count");
+		return b.toString();
+	}
+
+	/**
+	 * @return query creating the temporary table receiving the chunks, with the
+	 *         columns of the n-gram table but without its keys
+	 */
+	private String buildCreateChunkTableQuery(int n) {
+		return "CREATE TEMPORARY TABLE IF NOT EXISTS " + getChunkTable() + " AS SELECT " + getColumns(n) + " FROM "
+				+ getDatabaseName() + " LIMIT 0";
+	}
+
+	private String buildMergeQuery(int n) {
+		// INSERT INTO 2grams (word1, word2, count) SELECT word1, word2, count FROM 2grams_chunk
+		// ON DUPLICATE KEY UPDATE count = 2grams.count + VALUES(count)
+		StringBuilder b = new StringBuilder();
+		b.append("INSERT INTO " + getDatabaseName() + " (" + getColumns(n) + ") SELECT " + getColumns(n));
+		b.append(" FROM " + getChunkTable());
+		b.append(" ON DUPLICATE KEY UPDATE count = " + getDatabaseName() + ".count + VALUES(count)");
+		if (isStoringYearCounts()) {
+			b.append(", years = VALUES(years)");
+		}
+		return b.toString();
+	}
+
+	private String buildLoadQuery(int n) {
+		// The file name is ignored: the driver reads from the local infile stream
+		StringBuilder b = new StringBuilder();
+		b.append("LOAD DATA LOCAL INFILE 'ngrams.tsv' INTO TABLE ");
+		b.append(getChunkTable());
+		b.append(" CHARACTER SET utf8 (");
+		for (int i = 1; i <= n; i++) {
+			b.append(getWordColumn(i) + ", ");
+		}
+		if (isStoringYearCounts()) {
+			// The binary counts per year are sent as hexadecimal text
+			b.append("count, @years) SET years = UNHEX(@years)");
+		} else {
+			b.append("count)");
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Checks whether the server the connection points to accepts LOAD DATA LOCAL
+	 * INFILE statements
+	 *
+	 * @param connection
+	 * @return
+	 */
+	public static boolean isLocalInfileAllowed(Connection connection) {
+		try (Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery("SHOW VARIABLES LIKE 'local_infile'")) {
+			return statement instanceof com.mysql.jdbc.Statement && result.next()
+					&& "ON".equalsIgnoreCase(result.getString(2));
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Mutators
+	*-********************************************-*/
+
+	@Override
+	public void addCount(List<String> words, long count) {
+		addCount(words, count, null);
+	}
+
+	@Override
+	public void addCount(List<String> words, long count, byte[] yearCounts) {
+		if (!isStorable(words)) {
+			return;
+		}
+		for (int i = 0; i < getN(); i++) {
+			appendEscaped(words.get(i));
+			append((byte) '\t');
+		}
+		appendEscaped(Long.toString(count));
+		if (isStoringYearCounts()) {
+			append((byte) '\t');
+			appendHex(yearCounts);
+		}
+		append((byte) '\n');
+		pendingRows++;
+
+		if (pendingRows >= chunkSize) {
+			loadChunk();
+		}
+	}
+
+	/**
+	 * Streams all rows added since the last chunk to the database, upserts them
+	 * into the n-gram table, and commits if enough chunks have been loaded since
+	 * the last commit.
+	 */
+	private void loadChunk() {
+		if (pendingRows == 0) {
+			return;
+		}
+		try {
+			if (loadStatement == null) {
+				loadStatement = getConnection().createStatement();
+				loadStatement.execute(buildCreateChunkTableQuery(getN()));
+				loadQuery = buildLoadQuery(getN());
+				mergeQuery = buildMergeQuery(getN());
+			}
+			((com.mysql.jdbc.Statement) loadStatement)
+					.setLocalInfileInputStream(new ByteArrayInputStream(buffer, 0, bufferLength));
+			long start = System.nanoTime();
+			loadStatement.execute(loadQuery);
+			loadStatement.execute(mergeQuery);
+			// Not truncated, as truncating commits the open transaction
+			loadStatement.execute("DELETE FROM " + getChunkTable());
+			if (getMetrics() != null) {
+				getMetrics().recordBatch(System.nanoTime() - start);
+			}
+			bufferLength = 0;
+			pendingRows = 0;
+			pendingChunks++;
+			if (commitEvery > 0 && pendingChunks >= commitEvery && !isCheckpointing()) {
+				getConnection().commit();
+				pendingChunks = 0;
+			}
+		} catch (SQLException e) {
+			System.err.println("Got an exception while loading chunk!");
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected void sendPending() {
+		loadChunk();
+	}
+
+	@Override
+	public void flush() {
+		loadChunk();
+		try {
+			if (commitEvery > 0 && pendingChunks > 0 && !isCheckpointing()) {
+				getConnection().commit();
+			}
+			pendingChunks = 0;
+		} catch (SQLException e) {
+			System.err.println("Got an exception while committing!");
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			flush();
+			if (loadStatement != null) {
+				loadStatement.close();
+			}
+		} finally {
+			super.close();
+		}
+	}
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	/**
+	 * Appends the UTF-8 bytes of the value, escaping the characters that have a
+	 * special meaning for LOAD DATA
+	 */
+	private void appendEscaped(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				append((byte) '\\');
+				append((byte) '\\');
+				break;
+			case '\t':
+				append((byte) '\\');
+				append((byte) 't');
+				break;
+			case '\n':
+				append((byte) '\\');
+				append((byte) 'n');
+				break;
+			case '\r':
+				append((byte) '\\');
+				append((byte) 'r');
+				break;
+			default:
+				if (c < 0x80) {
+					append((byte) c);
+				} else {
+					appendNonAscii(value, i);
+					return;
+				}
+			}
+		}
+	}
+
+	private void appendNonAscii(String value, int from) {
+		// Rare case: no special characters are multi-byte, so encode the rest at once
+		byte[] bytes = value.substring(from).getBytes(StandardCharsets.UTF_8);
+		for (byte b : bytes) {
+			if (b == '\\' || b == '\t' || b == '\n' || b == '\r') {
+				appendEscaped(String.valueOf((char) b));
+			} else {
+				append(b);
+			}
+		}
+	}
+
+	/**
+	 * Appends the bytes as hexadecimal digits, or \N (NULL) if there are none
+	 */
+	private void appendHex(byte[] bytes) {
+		if (bytes == null) {
+			append((byte) '\\');
+			append((byte) 'N');
+			return;
+		}
+		for (byte b : bytes) {
+			append((byte) HEX_DIGITS[(b >> 4) & 0xF]);
+			append((byte) HEX_DIGITS[b & 0xF]);
+		}
+	}
+
+	private void append(byte b) {
+		if (bufferLength == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, bufferLength);
+			buffer = larger;
+		}
+		buffer[bufferLength++] = b;
+	}
+
+	/*-********************************************-*/
+
+}
@@ -0,0 +1,73 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Sink adding the n-grams to a MySQL table using a connector, which batches
+ * them and commits them together with the checkpoints
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramMySQLSink implements NgramSink {
+
+	private final NgramMySQLConnector connector;
+
+	public NgramMySQLSink(NgramMySQLConnector connector) {
+		this.connector = connector;
+	}
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		if (yearCounts == null) {
+			connector.addCount(words, count);
+		} else {
+			connector.addCount(words, count, yearCounts);
+		}
+	}
+
+	@Override
+	public void flush() {
+		connector.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			connector.close();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void enableYearCounts() {
+		connector.enableYearCounts();
+	}
+
+	@Override
+	public void setMetrics(NgramLoadMetrics metrics) {
+		connector.setMetrics(metrics);
+	}
+
+	/**
+	 * @return whether the connector only commits at checkpoints, such that a
+	 *         checkpoint covers exactly the committed n-grams
+	 */
+	@Override
+	public boolean isResumable() {
+		return connector.isCheckpointing();
+	}
+
+	@Override
+	public void checkpoint(NgramCheckpoint checkpoint, boolean finished) {
+		connector.checkpoint(checkpoint, finished);
+	}
+
+	public NgramMySQLConnector getConnector() {
+		return connector;
+	}
+
+}
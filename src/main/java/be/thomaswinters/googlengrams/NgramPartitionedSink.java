@@ -0,0 +1,313 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sink spreading the n-grams over several sinks, each written by its own
+ * thread, e.g. MySQL sinks on different connections. Every n-gram goes to the
+ * sink its words hash to, such that a row is always written by the same
+ * connection, and the writers do not compete for the same rows.
+ *
+ * Every writer has its own bounded queue of batches, and its sink keeps its own
+ * batch size and commit cadence. Flushing waits until every writer has flushed
+ * its sink. On closing, the throughput of every writer is printed. Loading into
+ * it can not be resumed, as a checkpoint saved on one connection can not cover
+ * the n-grams committed on the others.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramPartitionedSink implements NgramSink {
+
+	private static final long POLL_MILLIS = 100;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final List<Writer> writers = new ArrayList<>();
+	private final NgramTupleBatch flushMarker = new NgramTupleBatch(0);
+	private volatile boolean stopped = false;
+	private volatile Throwable failure;
+	private boolean closed = false;
+
+	/*-********************************************-*/
+
+	/**
+	 * Starts a writer thread for every sink
+	 *
+	 * @param sinks
+	 *            sinks receiving the n-grams hashing to them, closed together
+	 *            with this sink
+	 * @param queueDepth
+	 *            maximum amount of batches waiting for a writer
+	 * @param batchSize
+	 *            amount of n-grams in a batch passed to a writer
+	 */
+	public NgramPartitionedSink(List<? extends NgramSink> sinks, int queueDepth, int batchSize) {
+		if (sinks.isEmpty()) {
+			throw new IllegalArgumentException("Expected at least one sink to write to");
+		}
+		for (int i = 0; i < sinks.size(); i++) {
+			writers.add(new Writer(i, sinks.get(i), Math.max(1, queueDepth), Math.max(1, batchSize)));
+		}
+		for (Writer writer : writers) {
+			writer.thread.start();
+		}
+	}
+
+	/*-********************************************-*
+	 *  Sink
+	*-********************************************-*/
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		Writer writer = writers.get(partition(words));
+		writer.filling.add(words, count, yearCounts, -1);
+		if (writer.filling.isFull()) {
+			put(writer.queue, writer.filling);
+			writer.filling = take(writer.free);
+		}
+	}
+
+	/**
+	 * @return the writer of the n-gram, spreading the hash of its words
+	 */
+	private int partition(List<String> words) {
+		int hash = words.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), writers.size());
+	}
+
+	/**
+	 * Hands every partially filled batch to its writer, and waits until every
+	 * writer has written and flushed everything
+	 */
+	@Override
+	public void flush() {
+		for (Writer writer : writers) {
+			if (!writer.filling.isEmpty()) {
+				put(writer.queue, writer.filling);
+				writer.filling = take(writer.free);
+			}
+			put(writer.queue, flushMarker);
+		}
+		try {
+			for (Writer writer : writers) {
+				while (!writer.flushed.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					checkFailure();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Flushes all writers, stops them, and closes their sinks, also if a writer
+	 * or closing a sink failed. The first failure is thrown, with the others
+	 * added as suppressed. Closing again has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// A failed writer has nothing left to flush
+		Throwable error = failure;
+		if (error == null) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				error = e;
+			}
+		}
+		stopped = true;
+		for (Writer writer : writers) {
+			try {
+				writer.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				writer.sink.close();
+			} catch (IOException | RuntimeException e) {
+				error = addError(error, e);
+			}
+		}
+		report();
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error != null) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	private static Throwable addError(Throwable first, Throwable next) {
+		if (first == null) {
+			return next;
+		}
+		first.addSuppressed(next);
+		return first;
+	}
+
+	@Override
+	public void enableYearCounts() {
+		for (Writer writer : writers) {
+			writer.sink.enableYearCounts();
+		}
+	}
+
+	@Override
+	public void setMetrics(NgramLoadMetrics metrics) {
+		for (Writer writer : writers) {
+			writer.sink.setMetrics(metrics);
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Queue helpers
+	*-********************************************-*/
+
+	private <T> T take(BlockingQueue<T> queue) {
+		try {
+			T item;
+			while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+				checkFailure();
+			}
+			return item;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private <T> void put(BlockingQueue<T> queue, T item) {
+		try {
+			while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void checkFailure() {
+		Throwable failure = this.failure;
+		if (failure != null) {
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new RuntimeException(failure);
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Reporting
+	*-********************************************-*/
+
+	private void report() {
+		StringBuilder b = new StringBuilder("Partitioned writers:");
+		for (Writer writer : writers) {
+			b.append(writer.index > 0 ? ", " : " ");
+			b.append(writer);
+		}
+		System.out.println(b);
+	}
+
+	/*-********************************************-*/
+
+	/**
+	 * Thread writing the batches of one partition to its sink
+	 */
+	private class Writer implements Runnable {
+		private final int index;
+		private final NgramSink sink;
+		private final Thread thread;
+		private final BlockingQueue<NgramTupleBatch> queue;
+		private final BlockingQueue<NgramTupleBatch> free;
+		private final Semaphore flushed = new Semaphore(0);
+		private NgramTupleBatch filling;
+
+		// Only changed by the writer thread, read after it is joined
+		private long rows;
+		private long busyNanos;
+		private long started;
+		private long elapsedNanos;
+
+		Writer(int index, NgramSink sink, int queueDepth, int batchSize) {
+			this.index = index;
+			this.sink = sink;
+			this.queue = new ArrayBlockingQueue<>(queueDepth);
+			// One extra batch being filled, one being written
+			this.free = new ArrayBlockingQueue<>(queueDepth + 2);
+			for (int i = 0; i < queueDepth + 1; i++) {
+				free.add(new NgramTupleBatch(batchSize));
+			}
+			this.filling = new NgramTupleBatch(batchSize);
+			this.thread = new Thread(this, "ngram-writer-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			started = System.nanoTime();
+			try {
+				while (!stopped && failure == null) {
+					NgramTupleBatch batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (batch == null) {
+						continue;
+					}
+					long start = System.nanoTime();
+					if (batch == flushMarker) {
+						sink.flush();
+						flushed.release();
+					} else {
+						for (int i = 0; i < batch.size(); i++) {
+							sink.accept(batch.getWords(i), batch.getCount(i), batch.getYearCounts(i));
+						}
+						rows += batch.size();
+						batch.clear();
+						free.add(batch);
+					}
+					busyNanos += System.nanoTime() - start;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable e) {
+				synchronized (NgramPartitionedSink.this) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			} finally {
+				elapsedNanos = System.nanoTime() - started;
+			}
+		}
+
+		@Override
+		public String toString() {
+			double busySeconds = busyNanos / 1e9;
+			return String.format("#%d %,d rows (%,.0f rows/s, %d%% busy)", index, rows,
+					busySeconds == 0 ? 0. : rows / busySeconds,
+					elapsedNanos == 0 ? 0 : Math.round(100. * busyNanos / elapsedNanos));
+		}
+	}
+
+}
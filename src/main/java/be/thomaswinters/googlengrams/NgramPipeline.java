@@ -0,0 +1,330 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the parsing, filtering and writing of a loader on three threads. The
+ * stages are connected by bounded queues of batches, such that a slow database
+ * throttles the parsing instead of filling up the memory.
+ *
+ * The parser stage fills batches of records, the filter stage passes them to
+ * {@link NgramLoader#store(NgramRecord)} on the calling thread, and everything
+ * the loader stores is collected in batches for the writer stage.
+ *
+ * @author Thomas Winters
+ *
+ */
+class NgramPipeline {
+
+	private static final long POLL_MILLIS = 100;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final NgramCsvReader reader;
+	private final NgramLoader loader;
+	private final NgramSink sink;
+
+	private final BlockingQueue<RecordBatch> freeRecords;
+	private final BlockingQueue<RecordBatch> parsedRecords;
+	private final BlockingQueue<NgramTupleBatch> freeTuples;
+	private final BlockingQueue<NgramTupleBatch> tuplesToWrite;
+	private final RecordBatch endOfRecords = new RecordBatch(0);
+	private final NgramTupleBatch endOfTuples = new NgramTupleBatch(0);
+
+	private final Stage parserStage = new Stage("parser");
+	private final Stage filterStage = new Stage("filter");
+	private final Stage writerStage = new Stage("writer");
+	private final QueueStats parsedRecordsStats;
+	private final QueueStats tuplesToWriteStats;
+
+	private RecordBatch parsing;
+	private NgramTupleBatch storing;
+	private volatile Throwable failure;
+
+	/*-********************************************-*/
+
+	NgramPipeline(NgramCsvReader reader, NgramLoader loader, NgramSink sink, int queueDepth,
+			int batchSize) {
+		this.reader = reader;
+		this.loader = loader;
+		this.sink = sink;
+
+		// Two extra batches: one being filled by the producer, one being emptied by
+		// the consumer
+		int batches = queueDepth + 2;
+		this.freeRecords = new ArrayBlockingQueue<>(batches);
+		this.freeTuples = new ArrayBlockingQueue<>(batches);
+		for (int i = 0; i < batches; i++) {
+			freeRecords.add(new RecordBatch(batchSize));
+			freeTuples.add(new NgramTupleBatch(batchSize));
+		}
+		this.parsedRecords = new ArrayBlockingQueue<>(queueDepth);
+		this.tuplesToWrite = new ArrayBlockingQueue<>(queueDepth);
+		this.parsedRecordsStats = new QueueStats("parsed records", queueDepth);
+		this.tuplesToWriteStats = new QueueStats("tuples to write", queueDepth);
+	}
+
+	/*-********************************************-*
+	 *  Running
+	*-********************************************-*/
+
+	/**
+	 * Runs all stages, including {@link NgramLoader#endStoring()}, and returns
+	 * when everything is written.
+	 */
+	void run() {
+		Thread parser = new Thread(() -> runStage(this::parse), "ngram-parser");
+		Thread writer = new Thread(() -> runStage(this::write), "ngram-writer");
+		parser.start();
+		writer.start();
+		runStage(this::filter);
+		try {
+			parser.join();
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		}
+
+		report();
+		if (failure != null) {
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new RuntimeException(failure);
+		}
+	}
+
+	private void runStage(Runnable stage) {
+		try {
+			stage.run();
+		} catch (AbortedException e) {
+			// Another stage failed
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private void fail(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private void parse() {
+		parserStage.start();
+		parsing = take(freeRecords, parserStage);
+		reader.convert(loader.getStartOffset(), loader::acceptsLine, record -> {
+			parsing.add(record);
+			if (parsing.isFull()) {
+				put(parsedRecords, parsing, parserStage, parsedRecordsStats);
+				parsing = take(freeRecords, parserStage);
+			}
+		});
+		if (parsing.size > 0) {
+			put(parsedRecords, parsing, parserStage, parsedRecordsStats);
+		}
+		put(parsedRecords, endOfRecords, parserStage, parsedRecordsStats);
+		parserStage.stop();
+	}
+
+	private void filter() {
+		filterStage.start();
+		storing = take(freeTuples, filterStage);
+		RecordBatch batch;
+		while ((batch = take(parsedRecords, filterStage)) != endOfRecords) {
+			loader.prepare(batch.records, batch.size);
+			for (int i = 0; i < batch.size; i++) {
+				loader.store(batch.records[i]);
+			}
+			batch.size = 0;
+			freeRecords.add(batch);
+		}
+		loader.endStoring();
+		if (!storing.isEmpty()) {
+			put(tuplesToWrite, storing, filterStage, tuplesToWriteStats);
+		}
+		put(tuplesToWrite, endOfTuples, filterStage, tuplesToWriteStats);
+		filterStage.stop();
+	}
+
+	/**
+	 * Adds an n-gram stored by the loader to the batch for the writer stage
+	 */
+	void emit(List<String> words, long count, byte[] yearCounts, long resumeOffset) {
+		storing.add(words, count, yearCounts, resumeOffset);
+		if (storing.isFull()) {
+			put(tuplesToWrite, storing, filterStage, tuplesToWriteStats);
+			storing = take(freeTuples, filterStage);
+		}
+	}
+
+	private void write() {
+		writerStage.start();
+		NgramTupleBatch batch;
+		while ((batch = take(tuplesToWrite, writerStage)) != endOfTuples) {
+			for (int i = 0; i < batch.size(); i++) {
+				loader.write(batch.getWords(i), batch.getCount(i), batch.getYearCounts(i),
+						batch.getResumeOffset(i));
+			}
+			batch.clear();
+			freeTuples.add(batch);
+		}
+		sink.flush();
+		writerStage.stop();
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Queue helpers
+	*-********************************************-*/
+
+	private <T> T take(BlockingQueue<T> queue, Stage stage) {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				T item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (item != null) {
+					return item;
+				}
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AbortedException();
+		} finally {
+			stage.waited(System.nanoTime() - start);
+		}
+	}
+
+	private <T> void put(BlockingQueue<T> queue, T item, Stage stage, QueueStats stats) {
+		stats.sample(queue.size());
+		long start = System.nanoTime();
+		try {
+			while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AbortedException();
+		} finally {
+			stage.waited(System.nanoTime() - start);
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new AbortedException();
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Reporting
+	*-********************************************-*/
+
+	private void report() {
+		System.out.println("Pipeline stages: " + parserStage + ", " + filterStage + ", " + writerStage);
+		System.out.println("Pipeline queues: " + parsedRecordsStats + ", " + tuplesToWriteStats);
+	}
+
+	/**
+	 * Time a stage spent working versus waiting on its queues
+	 */
+	private static class Stage {
+		private final String name;
+		private long started;
+		private long elapsed;
+		private long waiting;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		void start() {
+			started = System.nanoTime();
+		}
+
+		void stop() {
+			elapsed = System.nanoTime() - started;
+		}
+
+		void waited(long nanos) {
+			waiting += nanos;
+		}
+
+		@Override
+		public String toString() {
+			long busy = Math.max(0, elapsed - waiting);
+			return name + " " + (elapsed == 0 ? 0 : Math.round(100. * busy / elapsed)) + "% busy ("
+					+ TimeUnit.NANOSECONDS.toMillis(waiting) + "ms waiting)";
+		}
+	}
+
+	/**
+	 * Depth of a queue, sampled every time a batch is put on it
+	 */
+	private static class QueueStats {
+		private final String name;
+		private final int capacity;
+		private long samples;
+		private long totalDepth;
+		private int maxDepth;
+
+		QueueStats(String name, int capacity) {
+			this.name = name;
+			this.capacity = capacity;
+		}
+
+		void sample(int depth) {
+			samples++;
+			totalDepth += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		@Override
+		public String toString() {
+			return name + " average depth " + String.format("%.1f", samples == 0 ? 0. : (double) totalDepth / samples)
+					+ "/" + capacity + " (max " + maxDepth + ")";
+		}
+	}
+
+	/*-********************************************-*/
+
+	/**
+	 * Batch of parsed records, which are copied from the reader's flyweight
+	 */
+	private static class RecordBatch {
+		private final NgramRecord[] records;
+		private int size = 0;
+
+		RecordBatch(int capacity) {
+			this.records = new NgramRecord[capacity];
+			for (int i = 0; i < capacity; i++) {
+				records[i] = new NgramRecord();
+			}
+		}
+
+		void add(NgramRecord record) {
+			records[size++].copyFrom(record);
+		}
+
+		boolean isFull() {
+			return size == records.length;
+		}
+	}
+
+	/**
+	 * Thrown in a stage to stop it when another stage failed
+	 */
+	private static class AbortedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+}
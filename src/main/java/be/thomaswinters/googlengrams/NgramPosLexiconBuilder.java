@@ -0,0 +1,88 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.arguments.ConstraintStringConverter;
+import be.thomaswinters.googlengrams.arguments.WordRegexStringConverter;
+import be.thomaswinters.pos.PosLexicon;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds a {@link PosLexicon} containing the vocabulary of the given 1-gram
+ * files, such that the 'adjectivenoun' constrainer does not have to tag every
+ * word again on every load.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramPosLexiconBuilder {
+
+	@Parameter(names = "-folder", description = "Folder of the 1-gram files", converter = FileConverter.class)
+	private File folder = new File("");
+
+	@Parameter(names = "-filePrefix", description = "Prefix of the 1-gram files")
+	private String filePrefix = "googlebooks-eng-1M-1gram-20090715-";
+
+	@Parameter(names = "-beginIndex", description = "Index of the file to start from")
+	private int begin = 0;
+
+	@Parameter(names = "-endIndex", description = "Index of the file to end with")
+	private int end = 10;
+
+	@Parameter(names = "-minOccurrences", description = "Minimum frequency of a word to be added to the lexicon")
+	private long minOccurrences = 0;
+
+	@Parameter(names = "-allowedRegex", description = "Regex every word of the lexicon should adhere to", converter = WordRegexStringConverter.class)
+	private String allowedRegex = WordRegexStringConverter.LOWERCASE_WORDS;
+
+	@Parameter(names = "-output", description = "File to write the lexicon to", converter = FileConverter.class)
+	private File output = new File("pos.lexicon");
+
+	private final Set<String> vocabulary = new HashSet<>();
+	private final NgramRecord last = new NgramRecord();
+	private long lastCount = 0;
+	private WordPattern wordPattern;
+
+	public void build() throws IOException {
+		wordPattern = WordPattern.compile(allowedRegex);
+		for (int i = begin; i < end; i++) {
+			System.out.println("Reading vocabulary of " + i);
+			new NgramCsvReader(NgramConstrainedLoader.findShard(folder, filePrefix + i)).convert(this::count);
+			addLast();
+		}
+
+		System.out.println("Tagging " + vocabulary.size() + " words");
+		PosLexicon.write(output, vocabulary, ConstraintStringConverter.getWordTypeCalculator());
+		System.out.println("Finished");
+	}
+
+	private void count(NgramRecord record) {
+		if (record.hasSameWords(last)) {
+			lastCount += record.getCount();
+		} else {
+			addLast();
+			last.copyFrom(record);
+			lastCount = record.getCount();
+		}
+	}
+
+	private void addLast() {
+		if (!last.isEmpty() && lastCount >= minOccurrences && wordPattern.matches(last.getWord(0))) {
+			vocabulary.add(last.getWord(0).toString());
+		}
+		last.clear();
+		lastCount = 0;
+	}
+
+	public static void main(String[] args) throws IOException {
+		NgramPosLexiconBuilder builder = new NgramPosLexiconBuilder();
+		JCommander.newBuilder().addObject(builder).build().parse(args);
+		builder.build();
+	}
+
+}
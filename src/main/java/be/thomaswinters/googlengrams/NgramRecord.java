@@ -0,0 +1,395 @@
+package be.thomaswinters.googlengrams;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reusable flyweight for one line of an n-gram file. A reader fills the same
+ * record for every line it parses, so consumers that want to keep any of its
+ * data should copy it (e.g. using {@link #copyFrom(NgramRecord)} or
+ * {@link #getWords()}).
+ *
+ * The words are kept as UTF-8 bytes and are only decoded when they are
+ * requested as characters.
+ *
+ * @author Thomas Winters
+ *
+ */
+public final class NgramRecord {
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private byte[] bytes = new byte[64];
+	private int length = 0;
+	private int[] wordStarts = new int[8];
+	private int[] wordEnds = new int[8];
+	private int size = 0;
+
+	private char[] chars = new char[64];
+	private int[] charStarts = new int[8];
+	private int[] charEnds = new int[8];
+	private boolean decoded = false;
+	private WordView[] views = new WordView[0];
+	private final List<String> wordList = new WordList();
+
+	private int year;
+	private long count;
+	private long volumeCount;
+	private long offset;
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Filling
+	*-********************************************-*/
+
+	/**
+	 * Sets the words of this record to the n-gram stored as UTF-8 in the given
+	 * range of the buffer
+	 */
+	void setWords(ByteBuffer buffer, int start, int end, byte wordSeperator) {
+		length = end - start;
+		ensureByteCapacity(length);
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		size = 0;
+		int wordStart = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || bytes[i] == wordSeperator) {
+				addWord(wordStart, i);
+				wordStart = i + 1;
+			}
+		}
+		decoded = false;
+	}
+
+	void setYear(int year) {
+		this.year = year;
+	}
+
+	void setCount(long count) {
+		this.count = count;
+	}
+
+	void setVolumeCount(long volumeCount) {
+		this.volumeCount = volumeCount;
+	}
+
+	void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Copies the words and numbers of the other record into this record
+	 */
+	public void copyFrom(NgramRecord other) {
+		length = other.length;
+		ensureByteCapacity(length);
+		System.arraycopy(other.bytes, 0, bytes, 0, length);
+		size = 0;
+		for (int i = 0; i < other.size; i++) {
+			addWord(other.wordStarts[i], other.wordEnds[i]);
+		}
+		decoded = false;
+		year = other.year;
+		count = other.count;
+		volumeCount = other.volumeCount;
+		offset = other.offset;
+	}
+
+	public void clear() {
+		length = 0;
+		size = 0;
+		decoded = false;
+		year = 0;
+		count = 0;
+		volumeCount = 0;
+		offset = 0;
+	}
+
+	private void addWord(int start, int end) {
+		if (size == wordStarts.length) {
+			wordStarts = Arrays.copyOf(wordStarts, size * 2);
+			wordEnds = Arrays.copyOf(wordEnds, size * 2);
+		}
+		wordStarts[size] = start;
+		wordEnds[size] = end;
+		size++;
+	}
+
+	private void ensureByteCapacity(int capacity) {
+		if (bytes.length < capacity) {
+			bytes = new byte[Math.max(capacity, bytes.length * 2)];
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the amount of words in the n-gram
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getYear() {
+		return year;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getVolumeCount() {
+		return volumeCount;
+	}
+
+	/**
+	 * @return the position of the start of the line in the (decompressed) file,
+	 *         which can be passed to the reader to continue from this line
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns a view on the i-th word. The view is reused, and changes when the
+	 * record is filled with another line.
+	 */
+	public CharSequence getWord(int i) {
+		decode();
+		return views[i];
+	}
+
+	/**
+	 * Returns a view on all words of this record. Like the word views, it changes
+	 * when the record is filled with another line.
+	 */
+	public List<String> getWordList() {
+		return wordList;
+	}
+
+	/**
+	 * @return a new list containing copies of the words
+	 */
+	public List<String> getWords() {
+		return Collections.unmodifiableList(new ArrayList<>(wordList));
+	}
+
+	/**
+	 * @return the array holding the UTF-8 bytes of the words, which should not be
+	 *         modified
+	 */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getWordStart(int i) {
+		return wordStarts[i];
+	}
+
+	int getWordEnd(int i) {
+		return wordEnds[i];
+	}
+
+	/**
+	 * Compares the words of both records without decoding them
+	 */
+	public boolean hasSameWords(NgramRecord other) {
+		if (length != other.length || size != other.size) {
+			return false;
+		}
+		for (int i = length - 1; i >= 0; i--) {
+			if (bytes[i] != other.bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Decoding
+	*-********************************************-*/
+
+	private void decode() {
+		if (decoded) {
+			return;
+		}
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		if (charStarts.length < size) {
+			charStarts = new int[wordStarts.length];
+			charEnds = new int[wordStarts.length];
+		}
+		if (views.length < size) {
+			WordView[] larger = Arrays.copyOf(views, wordStarts.length);
+			for (int i = views.length; i < larger.length; i++) {
+				larger[i] = new WordView(i);
+			}
+			views = larger;
+		}
+
+		int c = 0;
+		for (int w = 0; w < size; w++) {
+			charStarts[w] = c;
+			c = decodeWord(wordStarts[w], wordEnds[w], c);
+			charEnds[w] = c;
+		}
+		decoded = true;
+	}
+
+	/**
+	 * Decodes the UTF-8 bytes from i to end into chars[c], and returns the next
+	 * free char index. Like {@code new String(bytes, UTF_8)}, the longest start of
+	 * a malformed sequence becomes one replacement character, and decoding
+	 * resumes at the first byte that does not fit it.
+	 */
+	private int decodeWord(int i, int end, int c) {
+		while (i < end) {
+			int b1 = bytes[i++];
+			if (b1 >= 0) {
+				chars[c++] = (char) b1;
+			} else if ((b1 >> 5) == -2 && (b1 & 0x1E) != 0) {
+				// 2 bytes
+				if (i < end && isContinuation(bytes[i])) {
+					chars[c++] = (char) (((b1 & 0x1F) << 6) | (bytes[i++] & 0x3F));
+				} else {
+					chars[c++] = REPLACEMENT;
+				}
+			} else if ((b1 >> 4) == -2) {
+				// 3 bytes
+				if (i < end && isValidSecond(b1, bytes[i])) {
+					int b2 = bytes[i++];
+					if (i < end && isContinuation(bytes[i])) {
+						char decoded = (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (bytes[i++] & 0x3F));
+						chars[c++] = Character.isSurrogate(decoded) ? REPLACEMENT : decoded;
+					} else {
+						chars[c++] = REPLACEMENT;
+					}
+				} else {
+					chars[c++] = REPLACEMENT;
+				}
+			} else if ((b1 & 0xFF) <= 0xF4 && (b1 >> 3) == -2) {
+				// 4 bytes
+				if (i < end && isValidSecond(b1, bytes[i])) {
+					int b2 = bytes[i++];
+					if (i < end && isContinuation(bytes[i])) {
+						int b3 = bytes[i++];
+						if (i < end && isContinuation(bytes[i])) {
+							int codePoint = ((b1 & 0x07) << 18) | ((b2 & 0x3F) << 12) | ((b3 & 0x3F) << 6)
+									| (bytes[i++] & 0x3F);
+							chars[c++] = Character.highSurrogate(codePoint);
+							chars[c++] = Character.lowSurrogate(codePoint);
+						} else {
+							chars[c++] = REPLACEMENT;
+						}
+					} else {
+						chars[c++] = REPLACEMENT;
+					}
+				} else {
+					chars[c++] = REPLACEMENT;
+				}
+			} else {
+				chars[c++] = REPLACEMENT;
+			}
+		}
+		return c;
+	}
+
+	private static boolean isContinuation(int b) {
+		return (b & 0xC0) == 0x80;
+	}
+
+	/**
+	 * @return whether the byte can follow the first byte of a 3 or 4 byte
+	 *         sequence, which excludes overlong encodings and code points above
+	 *         U+10FFFF
+	 */
+	private static boolean isValidSecond(int b1, int b2) {
+		switch (b1 & 0xFF) {
+		case 0xE0:
+			return (b2 & 0xE0) == 0xA0;
+		case 0xF0:
+			return (b2 & 0xFF) >= 0x90 && (b2 & 0xFF) <= 0xBF;
+		case 0xF4:
+			return (b2 & 0xF0) == 0x80;
+		default:
+			return isContinuation(b2);
+		}
+	}
+
+	/**
+	 * Character view on a decoded word of this record
+	 */
+	private final class WordView implements CharSequence {
+		private final int index;
+
+		private WordView(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public int length() {
+			return charEnds[index] - charStarts[index];
+		}
+
+		@Override
+		public char charAt(int i) {
+			return chars[charStarts[index] + i];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, charStarts[index], length());
+		}
+	}
+
+	/**
+	 * List view on the decoded words of this record
+	 */
+	private final class WordList extends AbstractList<String> {
+		@Override
+		public String get(int index) {
+			if (index >= size) {
+				throw new IndexOutOfBoundsException("Index " + index + " of n-gram of size " + size);
+			}
+			return getWord(index).toString();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/*-********************************************-*/
+
+	@Override
+	public String toString() {
+		return wordList + "->" + year + "->" + count;
+	}
+}
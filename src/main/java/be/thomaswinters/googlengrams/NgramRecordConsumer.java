@@ -0,0 +1,15 @@
+package be.thomaswinters.googlengrams;
+
+/**
+ * Receives the lines read by an {@link NgramCsvReader}. The record passed is a
+ * flyweight that is refilled for every line.
+ *
+ * @author Thomas Winters
+ *
+ */
+@FunctionalInterface
+public interface NgramRecordConsumer {
+
+	void accept(NgramRecord record);
+
+}
@@ -0,0 +1,54 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sink writing the n-grams to a binary file sorted on their words, with the
+ * counts of equal n-grams summed. The file has the same layout as the runs
+ * spilled by {@link NgramAggregator}: for every n-gram, the length of its key,
+ * its words in UTF-8 separated by NUL bytes, and its count. N-grams are
+ * collected by an aggregator, which spills to disk when it exceeds its memory
+ * budget, and the file is only written when the sink is closed. Counts per
+ * year are ignored.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramRunSink implements NgramSink {
+
+	private final File file;
+	private final NgramAggregator aggregator;
+
+	/**
+	 * @param file
+	 *            file to write the sorted n-grams to when closed
+	 * @param maxMemory
+	 *            amount of bytes of counts kept in memory before spilling
+	 * @param spillFolder
+	 *            folder to write the intermediate runs to
+	 */
+	public NgramRunSink(File file, long maxMemory, File spillFolder) {
+		this.file = file;
+		this.aggregator = new NgramAggregator(maxMemory, spillFolder);
+	}
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		aggregator.add(words, count);
+	}
+
+	/**
+	 * Does nothing, as the n-grams can only be written once they are all known
+	 */
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		aggregator.finish(file);
+	}
+
+}
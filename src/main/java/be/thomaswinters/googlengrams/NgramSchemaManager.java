@@ -0,0 +1,294 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.NgramMySQLConnector.Schema;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates and executes the DDL of the n-gram table of any size, in either
+ * layout.
+ *
+ * Besides creating the table directly, it supports bulk loading through a
+ * staging table: the staging table only has its primary key, such that
+ * inserting does not maintain any secondary index. Once loaded, all secondary
+ * indexes are built at once, and the staging table atomically replaces the
+ * n-gram table using <code>RENAME TABLE</code>.
+ *
+ * In the 'WORDS' layout, the rows have an auto-increment id as primary key,
+ * as in <code>database-model.mwb</code>, and secondary indexes on the words:
+ * a unique key over all words, which the upserts rely on, and a key on every
+ * other word. The 'IDS' layout keys its rows on the word ids and has no
+ * secondary indexes.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramSchemaManager {
+
+	/** Maximum amount of bytes in an InnoDB index key */
+	private static final int MAX_KEY_BYTES = 3072;
+	/** Maximum amount of bytes of a character in the utf8 character set */
+	private static final int MAX_CHAR_BYTES = 3;
+	private static final int MAX_WORD_LENGTH = 255;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private final Connection connection;
+	private final int n;
+	private final Schema schema;
+	private final boolean yearCounts;
+
+	/*-********************************************-*/
+
+	/**
+	 * @param connection
+	 * @param n
+	 *            size of the n-grams
+	 * @param schema
+	 *            layout of the n-gram table
+	 * @param yearCounts
+	 *            whether the table has a <code>years</code> column
+	 */
+	public NgramSchemaManager(Connection connection, int n, Schema schema, boolean yearCounts) {
+		this.connection = connection;
+		this.n = n;
+		this.schema = schema;
+		this.yearCounts = yearCounts;
+	}
+
+	/*-********************************************-*
+	 *  Query building
+	*-********************************************-*/
+
+	/**
+	 * @param table
+	 *            name of the table to create
+	 * @param indexed
+	 *            whether the secondary indexes are created together with the
+	 *            table
+	 * @param partitions
+	 *            amount of partitions by the hash of the first word, or 0 to not
+	 *            partition the table
+	 */
+	public String buildCreateTable(String table, boolean indexed, int partitions) {
+		// CREATE TABLE 2grams (id INT UNSIGNED NOT NULL AUTO_INCREMENT,
+		// word1 VARCHAR(255) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL, ...,
+		// count BIGINT NOT NULL, PRIMARY KEY (id)) ENGINE=InnoDB DEFAULT CHARSET=utf8
+		StringBuilder b = new StringBuilder();
+		b.append("CREATE TABLE " + table + " (");
+		if (schema == Schema.WORDS) {
+			b.append("id INT UNSIGNED NOT NULL AUTO_INCREMENT, ");
+		}
+		for (int i = 1; i <= n; i++) {
+			b.append(getWordColumn(i));
+			// A binary collation keeps words differing in case or accents apart in the unique key
+			b.append(schema == Schema.WORDS
+					? " VARCHAR(" + getWordLength() + ") CHARACTER SET utf8 COLLATE utf8_bin NOT NULL, "
+					: " INT UNSIGNED NOT NULL, ");
+		}
+		b.append(yearCounts ? "count BIGINT NOT NULL, years BLOB, " : "count BIGINT NOT NULL, ");
+		if (schema == Schema.WORDS) {
+			// Partitioning requires the partitioning column in every unique key
+			b.append(partitions > 0 ? "PRIMARY KEY (id, word1)" : "PRIMARY KEY (id)");
+		} else {
+			b.append("PRIMARY KEY (" + getWordColumns() + ")");
+		}
+		if (indexed) {
+			for (String index : getSecondaryIndexes()) {
+				b.append(", " + index);
+			}
+		}
+		b.append(") ENGINE=InnoDB DEFAULT CHARSET=utf8");
+		if (partitions > 0) {
+			b.append(schema == Schema.WORDS ? " PARTITION BY KEY (word1)" : " PARTITION BY HASH (word1_id)");
+			b.append(" PARTITIONS " + partitions);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return a statement adding all secondary indexes to the table at once, or
+	 *         null if the layout has none
+	 */
+	public String buildAddIndexes(String table) {
+		List<String> indexes = getSecondaryIndexes();
+		if (indexes.isEmpty()) {
+			return null;
+		}
+		StringBuilder b = new StringBuilder();
+		b.append("ALTER TABLE " + table);
+		for (int i = 0; i < indexes.size(); i++) {
+			b.append(i > 0 ? ", ADD " : " ADD ");
+			b.append(indexes.get(i));
+		}
+		return b.toString();
+	}
+
+	private List<String> getSecondaryIndexes() {
+		List<String> indexes = new ArrayList<>();
+		if (schema == Schema.WORDS) {
+			// The unique key also serves lookups on the first word
+			indexes.add("UNIQUE KEY words (" + getWordColumns() + ")");
+			for (int i = 2; i <= n; i++) {
+				indexes.add("KEY " + getWordColumn(i) + " (" + getWordColumn(i) + ")");
+			}
+		}
+		return indexes;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Executing
+	*-********************************************-*/
+
+	/**
+	 * Creates the n-gram table with all its indexes if it does not exist yet,
+	 * together with the words table in the 'IDS' layout
+	 */
+	public void createTables() throws SQLException {
+		if (schema == Schema.IDS) {
+			execute("CREATE TABLE IF NOT EXISTS " + NgramMySQLIdConnector.WORDS_TABLE + " ("
+					+ "id INT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY, "
+					+ "word VARCHAR(255) CHARACTER SET utf8 COLLATE utf8_bin NOT NULL, "
+					+ "UNIQUE KEY word (word)) ENGINE=InnoDB");
+		}
+		if (!exists(getTable())) {
+			execute(buildCreateTable(getTable(), true, 0));
+		}
+	}
+
+	/**
+	 * Creates an empty staging table without secondary indexes, dropping the
+	 * staging table of an earlier load
+	 *
+	 * @param partitions
+	 *            amount of partitions by the hash of the first word, or 0 to not
+	 *            partition the table
+	 */
+	public void createStagingTable(int partitions) throws SQLException {
+		if (schema == Schema.IDS) {
+			createTables();
+		}
+		execute("DROP TABLE IF EXISTS " + getStagingTable());
+		execute(buildCreateTable(getStagingTable(), false, partitions));
+	}
+
+	/**
+	 * Builds all secondary indexes of the loaded staging table, and replaces the
+	 * n-gram table by it in a single rename. The previous n-gram table is
+	 * dropped.
+	 */
+	public void swapStagingTable() throws SQLException {
+		String addIndexes = buildAddIndexes(getStagingTable());
+		if (addIndexes != null) {
+			execute(addIndexes);
+		}
+		if (exists(getTable())) {
+			String old = getTable() + "_old";
+			execute("DROP TABLE IF EXISTS " + old);
+			execute("RENAME TABLE " + getTable() + " TO " + old + ", " + getStagingTable() + " TO " + getTable());
+			execute("DROP TABLE " + old);
+		} else {
+			execute("RENAME TABLE " + getStagingTable() + " TO " + getTable());
+		}
+	}
+
+	/**
+	 * Turns off the foreign key checks, and in the 'WORDS' layout the unique
+	 * checks, for the session of the connection. Unique keys are then not
+	 * checked against rows that are not in memory, so every n-gram should be
+	 * inserted only once. The unique checks stay on in the 'IDS' layout, as new
+	 * words are inserted relying on the unique key of the words table.
+	 */
+	public static void disableChecks(Connection connection, Schema schema) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("SET foreign_key_checks = 0");
+			if (schema == Schema.WORDS) {
+				statement.execute("SET unique_checks = 0");
+			}
+		}
+	}
+
+	private void execute(String query) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(query);
+		}
+	}
+
+	private boolean exists(String table) throws SQLException {
+		try (ResultSet result = connection.getMetaData().getTables(connection.getCatalog(), null, table, null)) {
+			return result.next();
+		}
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	public String getTable() {
+		return n + "grams";
+	}
+
+	public String getStagingTable() {
+		return getTable() + "_staging";
+	}
+
+	/**
+	 * @return the amount of characters of a word column, such that the unique
+	 *         key over all words fits in an InnoDB index
+	 */
+	public int getWordLength() {
+		return getWordLength(n);
+	}
+
+	/**
+	 * @return the amount of characters of a word column of the n-gram table of
+	 *         the given size in the 'WORDS' layout
+	 */
+	public static int getWordLength(int n) {
+		return Math.min(MAX_WORD_LENGTH, MAX_KEY_BYTES / (MAX_CHAR_BYTES * n));
+	}
+
+	/**
+	 * @return whether a utf8 column of the given amount of characters stores the
+	 *         word exactly: the 3-byte utf8 character set has no characters
+	 *         outside the basic multilingual plane, and strict mode rejects
+	 *         longer words
+	 */
+	public static boolean isStorable(String word, int length) {
+		if (word.length() > length) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (Character.isSurrogate(word.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getWordColumn(int i) {
+		return schema == Schema.WORDS ? "word" + i : "word" + i + "_id";
+	}
+
+	private String getWordColumns() {
+		StringBuilder b = new StringBuilder();
+		for (int i = 1; i <= n; i++) {
+			b.append(i > 1 ? ", " : "");
+			b.append(getWordColumn(i));
+		}
+		return b.toString();
+	}
+
+	/*-********************************************-*/
+
+}
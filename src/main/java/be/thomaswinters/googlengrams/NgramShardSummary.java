@@ -0,0 +1,51 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Outcome of loading a single n-gram shard file
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramShardSummary {
+
+	private final int index;
+	private final File file;
+	private final long durationMillis;
+	private final Optional<Throwable> failure;
+
+	public NgramShardSummary(int index, File file, long durationMillis, Optional<Throwable> failure) {
+		this.index = index;
+		this.file = file;
+		this.durationMillis = durationMillis;
+		this.failure = failure;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public Optional<Throwable> getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccessful() {
+		return !failure.isPresent();
+	}
+
+	@Override
+	public String toString() {
+		return index + "\t" + file.getName() + "\t" + (isSuccessful() ? "OK" : "FAILED") + "\t"
+				+ (durationMillis / 1000.) + "s" + failure.map(e -> "\t" + e).orElse("");
+	}
+}
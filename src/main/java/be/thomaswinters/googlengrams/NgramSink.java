@@ -0,0 +1,71 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the n-grams stored by an {@link NgramLoader}. N-grams are
+ * accepted one by one, and a sink may buffer them until it is flushed, such
+ * that it can send them on in batches.
+ *
+ * @author Thomas Winters
+ *
+ */
+public interface NgramSink extends Closeable {
+
+	/**
+	 * Adds an n-gram with its count
+	 *
+	 * @param yearCounts
+	 *            the counts per year encoded by {@link NgramYearCounts}, or null
+	 *            if they are not kept
+	 */
+	void accept(List<String> words, long count, byte[] yearCounts);
+
+	/**
+	 * Sends on all accepted n-grams that are still buffered
+	 */
+	void flush();
+
+	/**
+	 * Flushes the sink and releases its resources
+	 */
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Makes the sink store the counts per year passed to
+	 * {@link #accept(List, long, byte[])}. Sinks that can not store them ignore
+	 * them.
+	 */
+	default void enableYearCounts() {
+	}
+
+	/**
+	 * Makes the sink record its own latencies and failures in the given metrics
+	 */
+	default void setMetrics(NgramLoadMetrics metrics) {
+	}
+
+	/**
+	 * @return whether the sink saves the checkpoints passed to
+	 *         {@link #checkpoint(NgramCheckpoint, boolean)}, such that loading
+	 *         into it can be resumed
+	 */
+	default boolean isResumable() {
+		return false;
+	}
+
+	/**
+	 * Flushes the sink and saves the checkpoint, such that loading can continue
+	 * after the accepted n-grams. Does nothing for sinks that are not
+	 * {@link #isResumable() resumable}.
+	 *
+	 * @param finished
+	 *            whether the whole file is loaded
+	 */
+	default void checkpoint(NgramCheckpoint checkpoint, boolean finished) {
+	}
+
+}
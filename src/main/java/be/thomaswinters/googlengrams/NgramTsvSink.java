@@ -0,0 +1,75 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sink writing every n-gram as a line of tab separated values: the words, the
+ * count and, if enabled, the counts per year as <code>year:count</code> pairs
+ * separated by commas. The lines are in the order in which the n-grams are
+ * stored.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramTsvSink implements NgramSink {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out;
+	private final StringBuilder line = new StringBuilder();
+	private boolean writingYearCounts = false;
+
+	public NgramTsvSink(File file) throws IOException {
+		this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+				BUFFER_SIZE);
+	}
+
+	@Override
+	public void accept(List<String> words, long count, byte[] yearCounts) {
+		line.setLength(0);
+		for (String word : words) {
+			line.append(word).append('\t');
+		}
+		line.append(count);
+		if (writingYearCounts) {
+			line.append('\t');
+			if (yearCounts != null) {
+				NgramYearCounts years = NgramYearCounts.decode(yearCounts);
+				for (int i = 0; i < years.size(); i++) {
+					if (i > 0) {
+						line.append(',');
+					}
+					line.append(years.getYear(i)).append(':').append(years.getCount(i));
+				}
+			}
+		}
+		line.append('\n');
+		try {
+			out.append(line);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void enableYearCounts() {
+		this.writingYearCounts = true;
+	}
+
+	@Override
+	public void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
@@ -0,0 +1,78 @@
+package be.thomaswinters.googlengrams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Batch of n-grams with their count and optionally their encoded counts per
+ * year that are ready to be stored, together with the offset in the file from
+ * which loading can be resumed once they are stored
+ *
+ * @author Thomas Winters
+ *
+ */
+class NgramTupleBatch {
+
+	private final List<List<String>> words;
+	private final long[] counts;
+	private final byte[][] yearCounts;
+	private final long[] resumeOffsets;
+
+	NgramTupleBatch(int capacity) {
+		this.words = new ArrayList<>(capacity);
+		this.counts = new long[capacity];
+		this.yearCounts = new byte[capacity][];
+		this.resumeOffsets = new long[capacity];
+	}
+
+	void add(List<String> ngram, long count) {
+		add(ngram, count, null, -1);
+	}
+
+	void add(List<String> ngram, long count, byte[] yearCounts, long resumeOffset) {
+		counts[words.size()] = count;
+		this.yearCounts[words.size()] = yearCounts;
+		resumeOffsets[words.size()] = resumeOffset;
+		words.add(ngram);
+	}
+
+	boolean isFull() {
+		return words.size() == counts.length;
+	}
+
+	boolean isEmpty() {
+		return words.isEmpty();
+	}
+
+	int size() {
+		return words.size();
+	}
+
+	List<String> getWords(int i) {
+		return words.get(i);
+	}
+
+	long getCount(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * @return the encoded counts per year of the i-th n-gram, or null if not kept
+	 */
+	byte[] getYearCounts(int i) {
+		return yearCounts[i];
+	}
+
+	/**
+	 * @return the offset to resume from after the i-th n-gram, or -1 if unknown
+	 */
+	long getResumeOffset(int i) {
+		return resumeOffsets[i];
+	}
+
+	void clear() {
+		Arrays.fill(yearCounts, 0, words.size(), null);
+		words.clear();
+	}
+}
@@ -0,0 +1,264 @@
+package be.thomaswinters.googlengrams;
+
+import be.thomaswinters.googlengrams.arguments.NgramConstraint;
+import be.thomaswinters.googlengrams.arguments.WordTypeConstraint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Dictionary giving every distinct word of one or more n-gram files an integer
+ * id, together with precomputed flags telling if the word matches the allowed
+ * regex and what its word types are. Filtering an n-gram then only needs a
+ * hash lookup of the bytes of every word, instead of a regex and a tagger.
+ *
+ * Words are stored as UTF-8 bytes in one array and found using an
+ * open-addressing hash table.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramVocabulary {
+
+	private static final int EMPTY = -1;
+
+	/*-********************************************-*
+	 *  Instance variables
+	*-********************************************-*/
+	private byte[] bytes = new byte[1 << 16];
+	private int bytesLength = 0;
+	private int[] offsets = new int[1 << 10];
+	private int[] hashes = new int[1 << 10];
+	private int size = 0;
+	private int[] table = newTable(1 << 11);
+
+	private final BitSet acceptedByRegex = new BitSet();
+	private int[] wordTypeMasks = new int[0];
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Building
+	*-********************************************-*/
+
+	/**
+	 * Adds all words of lines with an accepted year to this vocabulary
+	 *
+	 * @param reader
+	 * @param yearFilter
+	 */
+	public void collect(NgramCsvReader reader, IntPredicate yearFilter) {
+		collect(reader, yearFilter, record -> true);
+	}
+
+	/**
+	 * Adds all words of lines with an accepted year and accepted by the filter,
+	 * e.g. to leave out the words of n-grams that are too rare to be stored
+	 *
+	 * @param reader
+	 * @param yearFilter
+	 * @param filter
+	 */
+	public void collect(NgramCsvReader reader, IntPredicate yearFilter, Predicate<NgramRecord> filter) {
+		reader.convert(yearFilter, record -> {
+			if (!filter.test(record)) {
+				return;
+			}
+			for (int i = 0; i < record.size(); i++) {
+				add(record.getBytes(), record.getWordStart(i), record.getWordEnd(i));
+			}
+		});
+	}
+
+	/**
+	 * Adds the words of a 1-gram file whose count summed over the accepted years
+	 * reaches the minimum. Rarer words can not be part of an n-gram occurring
+	 * often enough, so classifying them would be wasted work. The lines of a word
+	 * should follow each other, as they do in the files of Google.
+	 *
+	 * @param reader
+	 * @param yearFilter
+	 * @param minCount
+	 */
+	public void collectFrequent(NgramCsvReader reader, IntPredicate yearFilter, long minCount) {
+		NgramRecord last = new NgramRecord();
+		long[] lastCount = new long[1];
+		reader.convert(yearFilter, record -> {
+			if (record.hasSameWords(last)) {
+				lastCount[0] += record.getCount();
+				return;
+			}
+			addIfFrequent(last, lastCount[0], minCount);
+			last.copyFrom(record);
+			lastCount[0] = record.getCount();
+		});
+		addIfFrequent(last, lastCount[0], minCount);
+	}
+
+	private void addIfFrequent(NgramRecord record, long count, long minCount) {
+		if (!record.isEmpty() && count >= minCount) {
+			for (int i = 0; i < record.size(); i++) {
+				add(record.getBytes(), record.getWordStart(i), record.getWordEnd(i));
+			}
+		}
+	}
+
+	/**
+	 * Computes for every word whether it matches the regex and, if the constraint
+	 * is decided by word types, what the word types of the words matching the
+	 * regex are.
+	 *
+	 * @param allowedRegex
+	 * @param constraint
+	 */
+	public void classify(WordPattern allowedRegex, NgramConstraint constraint) {
+		List<String> accepted = new ArrayList<>();
+		List<Integer> acceptedIds = new ArrayList<>();
+		for (int id = 0; id < size; id++) {
+			String word = getWord(id);
+			if (allowedRegex.matches(word)) {
+				acceptedByRegex.set(id);
+				accepted.add(word);
+				acceptedIds.add(id);
+			}
+		}
+
+		wordTypeMasks = new int[size];
+		if (constraint instanceof WordTypeConstraint && !accepted.isEmpty()) {
+			int[] masks = ((WordTypeConstraint) constraint).getWordTypeMasks(accepted);
+			for (int i = 0; i < masks.length; i++) {
+				wordTypeMasks[acceptedIds.get(i)] = masks[i];
+			}
+		}
+	}
+
+	/**
+	 * Adds the word stored in the given range of the array if it is new
+	 *
+	 * @return the id of the word
+	 */
+	public int add(byte[] source, int start, int end) {
+		int hash = hash(source, start, end);
+		int slot = findSlot(source, start, end, hash);
+		if (table[slot] != EMPTY) {
+			return table[slot];
+		}
+
+		int length = end - start;
+		if (bytes.length < bytesLength + length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesLength + length));
+		}
+		System.arraycopy(source, start, bytes, bytesLength, length);
+		if (size + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		int id = size++;
+		offsets[id] = bytesLength;
+		bytesLength += length;
+		offsets[size] = bytesLength;
+		hashes[id] = hash;
+		table[slot] = id;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return id;
+	}
+
+	private void rehash(int capacity) {
+		table = newTable(capacity);
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id;
+		}
+	}
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[capacity];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Lookup
+	*-********************************************-*/
+
+	/**
+	 * @return the id of the word stored in the given range of the array, or -1 if
+	 *         it is not in the vocabulary
+	 */
+	public int idOf(byte[] source, int start, int end) {
+		return table[findSlot(source, start, end, hash(source, start, end))];
+	}
+
+	public boolean isAcceptedByRegex(int id) {
+		return acceptedByRegex.get(id);
+	}
+
+	/**
+	 * @return the word types of the word as mask, see
+	 *         {@link be.thomaswinters.pos.PosLexicon#toMask(edu.mit.jwi.item.POS)}
+	 */
+	public int getWordTypeMask(int id) {
+		return wordTypeMasks[id];
+	}
+
+	public String getWord(int id) {
+		return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int findSlot(byte[] source, int start, int end, int hash) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != EMPTY) {
+			int id = table[slot];
+			if (hashes[id] == hash && equals(id, source, start, end)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private boolean equals(int id, byte[] source, int start, int end) {
+		int offset = offsets[id];
+		int length = offsets[id + 1] - offset;
+		if (length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (bytes[offset + i] != source[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] source, int start, int end) {
+		// FNV-1a, with the bits spread for the power of two table
+		int hash = 0x811C9DC5;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ source[i]) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	/*-********************************************-*/
+
+}
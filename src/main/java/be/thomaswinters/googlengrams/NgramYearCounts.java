@@ -0,0 +1,194 @@
+package be.thomaswinters.googlengrams;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Counts of an n-gram per year. They are stored as a compact byte array: the
+ * amount of years, followed by the difference with the previous year and the
+ * count for every year in increasing order, all as unsigned variable-length
+ * integers. Most years and counts of an n-gram then take one or two bytes.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramYearCounts {
+
+	private int[] years = new int[16];
+	private long[] counts = new long[16];
+	private int size = 0;
+	private boolean sorted = true;
+
+	/*-********************************************-*
+	 *  Adding
+	*-********************************************-*/
+
+	public void add(int year, long count) {
+		if (size > 0 && years[size - 1] == year) {
+			counts[size - 1] += count;
+			return;
+		}
+		if (size == years.length) {
+			years = Arrays.copyOf(years, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+		}
+		if (size > 0 && years[size - 1] > year) {
+			sorted = false;
+		}
+		years[size] = year;
+		counts[size] = count;
+		size++;
+	}
+
+	public void clear() {
+		size = 0;
+		sorted = true;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Encoding
+	*-********************************************-*/
+
+	/**
+	 * @return the counts in the compact encoding
+	 */
+	public byte[] encode() {
+		sort();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(2 + 4 * size);
+		writeVarLong(out, size);
+		int previousYear = 0;
+		for (int i = 0; i < size; i++) {
+			writeVarLong(out, years[i] - previousYear);
+			writeVarLong(out, counts[i]);
+			previousYear = years[i];
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Sums the counts of the years in the given range, including both bounds,
+	 * without decoding the other years
+	 *
+	 * @param encoded
+	 *            counts as returned by {@link #encode()}
+	 * @param fromYear
+	 * @param toYear
+	 * @return
+	 */
+	public static long sum(byte[] encoded, int fromYear, int toYear) {
+		int[] position = { 0 };
+		long amount = readVarLong(encoded, position);
+		long total = 0;
+		int year = 0;
+		for (long i = 0; i < amount; i++) {
+			year += (int) readVarLong(encoded, position);
+			long count = readVarLong(encoded, position);
+			if (year > toYear) {
+				break;
+			}
+			if (year >= fromYear) {
+				total += count;
+			}
+		}
+		return total;
+	}
+
+	public static NgramYearCounts decode(byte[] encoded) {
+		NgramYearCounts result = new NgramYearCounts();
+		int[] position = { 0 };
+		long amount = readVarLong(encoded, position);
+		int year = 0;
+		for (long i = 0; i < amount; i++) {
+			year += (int) readVarLong(encoded, position);
+			result.add(year, readVarLong(encoded, position));
+		}
+		return result;
+	}
+
+	private void sort() {
+		if (sorted) {
+			return;
+		}
+		// Insertion sort, as the years of a line are mostly in order
+		for (int i = 1; i < size; i++) {
+			int year = years[i];
+			long count = counts[i];
+			int j = i - 1;
+			while (j >= 0 && years[j] > year) {
+				years[j + 1] = years[j];
+				counts[j + 1] = counts[j];
+				j--;
+			}
+			years[j + 1] = year;
+			counts[j + 1] = count;
+		}
+		// Merge the counts of years that occurred more than once
+		int merged = 0;
+		for (int i = 0; i < size; i++) {
+			if (merged > 0 && years[merged - 1] == years[i]) {
+				counts[merged - 1] += counts[i];
+			} else {
+				years[merged] = years[i];
+				counts[merged] = counts[i];
+				merged++;
+			}
+		}
+		size = merged;
+		sorted = true;
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(byte[] bytes, int[] position) {
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[position[0]++];
+			result |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return result;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Getters
+	*-********************************************-*/
+
+	public int size() {
+		return size;
+	}
+
+	public int getYear(int i) {
+		sort();
+		return years[i];
+	}
+
+	public long getCount(int i) {
+		sort();
+		return counts[i];
+	}
+
+	@Override
+	public String toString() {
+		sort();
+		StringBuilder b = new StringBuilder("{");
+		for (int i = 0; i < size; i++) {
+			b.append(i > 0 ? ", " : "").append(years[i]).append('=').append(counts[i]);
+		}
+		return b.append('}').toString();
+	}
+
+	/*-********************************************-*/
+
+}
@@ -0,0 +1,270 @@
+package be.thomaswinters.googlengrams;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of the regex every word of a stored n-gram should match. The
+ * shortcuts of {@link be.thomaswinters.googlengrams.arguments.WordRegexStringConverter}
+ * and other patterns consisting of a single anchored character class (e.g.
+ * <code>^[a-z\-]+$</code>) are checked using a lookup table instead of a regex
+ * matcher, and patterns matching everything are not checked at all. Other
+ * patterns fall back to {@link Pattern}.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Thomas Winters
+ *
+ */
+public abstract class WordPattern {
+
+	/*-********************************************-*
+	 *  Compiling
+	*-********************************************-*/
+
+	/**
+	 * Compiles the regex into the fastest matching implementation
+	 *
+	 * @param regex
+	 * @return
+	 */
+	public static WordPattern compile(String regex) {
+		String body = stripAnchors(regex);
+		if (body.equals(".*")) {
+			return new AllWordPattern(regex);
+		}
+		WordPattern characterClass = CharacterClassPattern.parse(regex, body);
+		if (characterClass != null) {
+			return characterClass;
+		}
+		return new RegexWordPattern(regex);
+	}
+
+	private static String stripAnchors(String regex) {
+		String body = regex;
+		if (body.startsWith("^")) {
+			body = body.substring(1);
+		}
+		if (body.endsWith("$") && !body.endsWith("\\$")) {
+			body = body.substring(0, body.length() - 1);
+		}
+		return body;
+	}
+
+	/*-********************************************-*/
+
+	private final String regex;
+
+	private WordPattern(String regex) {
+		this.regex = regex;
+	}
+
+	/**
+	 * @return whether the whole word matches the pattern
+	 */
+	public abstract boolean matches(CharSequence word);
+
+	/**
+	 * Matches the word stored as UTF-8 in the given range of the array. Decodes
+	 * the word into a new string, unless {@link #matchesBytes()}.
+	 */
+	public boolean matches(byte[] bytes, int start, int end) {
+		return matches(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return whether {@link #matches(byte[], int, int)} checks the bytes
+	 *         directly, without decoding the word
+	 */
+	public boolean matchesBytes() {
+		return false;
+	}
+
+	/**
+	 * @return whether every word matches, such that checking can be skipped
+	 */
+	public boolean matchesAll() {
+		return false;
+	}
+
+	public String getRegex() {
+		return regex;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "(" + regex + ")";
+	}
+
+	/*-********************************************-*
+	 *  Implementations
+	*-********************************************-*/
+
+	private static class AllWordPattern extends WordPattern {
+		AllWordPattern(String regex) {
+			super(regex);
+		}
+
+		@Override
+		public boolean matches(CharSequence word) {
+			return true;
+		}
+
+		@Override
+		public boolean matches(byte[] bytes, int start, int end) {
+			return true;
+		}
+
+		@Override
+		public boolean matchesBytes() {
+			return true;
+		}
+
+		@Override
+		public boolean matchesAll() {
+			return true;
+		}
+	}
+
+	private static class RegexWordPattern extends WordPattern {
+		private final Matcher matcher;
+
+		RegexWordPattern(String regex) {
+			super(regex);
+			this.matcher = Pattern.compile(regex).matcher("");
+		}
+
+		@Override
+		public boolean matches(CharSequence word) {
+			return matcher.reset(word).matches();
+		}
+	}
+
+	/**
+	 * Pattern of the form <code>^[...]+$</code> or <code>^[...]*$</code>, where
+	 * the class only contains single characters and ranges
+	 */
+	private static class CharacterClassPattern extends WordPattern {
+		private final boolean[] ascii = new boolean[128];
+		private final List<char[]> nonAsciiRanges = new ArrayList<>();
+		private final int minLength;
+
+		private CharacterClassPattern(String regex, int minLength) {
+			super(regex);
+			this.minLength = minLength;
+		}
+
+		/**
+		 * @return the compiled pattern, or null if the pattern is not a single
+		 *         character class
+		 */
+		static CharacterClassPattern parse(String regex, String body) {
+			if (body.length() < 4 || body.charAt(0) != '[' || body.charAt(1) == '^') {
+				return null;
+			}
+			char quantifier = body.charAt(body.length() - 1);
+			if ((quantifier != '+' && quantifier != '*') || body.charAt(body.length() - 2) != ']') {
+				return null;
+			}
+			CharacterClassPattern pattern = new CharacterClassPattern(regex, quantifier == '+' ? 1 : 0);
+
+			String characters = body.substring(1, body.length() - 2);
+			int i = 0;
+			while (i < characters.length()) {
+				char from = characters.charAt(i);
+				if (from == '\\') {
+					if (i + 1 >= characters.length() || Character.isLetterOrDigit(characters.charAt(i + 1))) {
+						// Predefined classes like \w are left to the regex engine
+						return null;
+					}
+					from = characters.charAt(++i);
+				} else if (from == '[' || from == ']' || from == '&') {
+					return null;
+				}
+				i++;
+
+				char to = from;
+				if (i + 1 < characters.length() && characters.charAt(i) == '-') {
+					to = characters.charAt(i + 1);
+					if (to == '\\' || to == '[' || to == ']' || to < from) {
+						return null;
+					}
+					i += 2;
+				}
+				if (from <= Character.MAX_SURROGATE && to >= Character.MIN_SURROGATE) {
+					// Characters outside the BMP are matched per code point by the regex engine
+					return null;
+				}
+				pattern.add(from, to);
+			}
+			return pattern;
+		}
+
+		private void add(char from, char to) {
+			for (char c = from; c <= to && c < 128; c++) {
+				ascii[c] = true;
+			}
+			if (to >= 128) {
+				nonAsciiRanges.add(new char[] { (char) Math.max(from, 128), to });
+			}
+		}
+
+		@Override
+		public boolean matches(CharSequence word) {
+			int length = word.length();
+			if (length < minLength) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (!accepts(word.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Checks the bytes directly if the class only contains ASCII characters,
+		 * as no byte of a multi-byte UTF-8 character is ASCII
+		 */
+		@Override
+		public boolean matchesBytes() {
+			return nonAsciiRanges.isEmpty();
+		}
+
+		@Override
+		public boolean matches(byte[] bytes, int start, int end) {
+			if (!matchesBytes()) {
+				return super.matches(bytes, start, end);
+			}
+			if (end - start < minLength) {
+				return false;
+			}
+			for (int i = start; i < end; i++) {
+				int b = bytes[i];
+				if (b < 0 || !ascii[b]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean accepts(char c) {
+			if (c < 128) {
+				return ascii[c];
+			}
+			for (char[] range : nonAsciiRanges) {
+				if (range[0] <= c && c <= range[1]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/*-********************************************-*/
+
+}
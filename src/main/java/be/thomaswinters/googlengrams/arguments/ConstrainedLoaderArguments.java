@@ -1,23 +1,33 @@
 package be.thomaswinters.googlengrams.arguments;
 
+import be.thomaswinters.googlengrams.NgramConstrainedLoader.Aggregation;
+import be.thomaswinters.googlengrams.NgramConstrainedLoader.SinkType;
+import be.thomaswinters.googlengrams.NgramMySQLConnector.InsertMode;
+import be.thomaswinters.googlengrams.NgramMySQLConnector.Schema;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
 
-public class ConstrainedLoaderArguments {
+public class ConstrainedLoaderArguments implements Cloneable {
+
+	/** Replaced by the size of the n-grams in the folder, the file prefix and the output */
+	public static final String N_PLACEHOLDER = "{n}";
 
 	@Parameter(names = "-folder", description = "Folder of the n-gram files", converter = FileConverter.class)
 	private File folder = new File("");
 
-	@Parameter(names = "-filePrefix", description = "Prefix of the n-gram files", converter = FileConverter.class)
+	@Parameter(names = "-filePrefix", description = "Prefix of the n-gram files")
 	private String filePrefix = "googlebooks-eng-1M-2gram-20090715-";
 
 	@Parameter(names = "-n", description = "Size of the n-gram mode, e.g. 2-gram.")
 	private int n = 2;
 
+	@Parameter(names = "-ns", description = "Sizes of the n-grams to load together in one run, e.g. '1,2,3', instead of -n. {n} in the folder, the file prefix and the output is replaced by every size.")
+	private List<Integer> ns = new ArrayList<>();
+
 	@Parameter(names = "-minOccurrences", description = "Minimum frequency in order to be stored when all occurrences over all the allowed years are summed")
 	private int minOccurrences = 100;
 
@@ -33,12 +43,72 @@ public class ConstrainedLoaderArguments {
 	@Parameter(names = "-endIndex", description = "Index of the file to end with")
 	private int end = 100;
 
+	@Parameter(names = "-endIndices", description = "Index of the file to end with for every size of -ns, instead of -endIndex")
+	private List<Integer> ends = new ArrayList<>();
+
+	@Parameter(names = "-threads", description = "Amount of files loaded concurrently, each using its own SQL connection")
+	private int threads = 1;
+
+	@Parameter(names = "-pipeline", description = "Parse, filter and write on separate threads connected by bounded queues")
+	private boolean pipelined = false;
+
+	@Parameter(names = "-queueDepth", description = "Maximum amount of batches waiting between two pipeline stages")
+	private int queueDepth = 8;
+
+	@Parameter(names = "-pipelineBatchSize", description = "Amount of lines or n-grams in a batch passed between pipeline stages")
+	private int pipelineBatchSize = 4096;
+
+	@Parameter(names = "-aggregation", description = "How the counts of the lines of an n-gram are summed: 'ADJACENT' for lines directly following each other, 'HASH' for all lines in a file, in any order, 'GLOBAL' for all lines in all files")
+	private Aggregation aggregation = Aggregation.ADJACENT;
+
+	@Parameter(names = "-aggregationMemory", description = "Megabytes of counts kept in memory per file by the 'HASH' and 'GLOBAL' aggregations before spilling sorted runs to disk, at most 2047")
+	private long aggregationMemory = 512;
+
+	@Parameter(names = "-spillFolder", description = "Folder for the sorted runs spilled by the 'HASH' and 'GLOBAL' aggregations", converter = FileConverter.class)
+	private File spillFolder = new File(System.getProperty("java.io.tmpdir"));
+
+	@Parameter(names = "-yearCounts", description = "Also store the count of every accepted year of an n-gram, compactly encoded in the 'years' BLOB column. Needs the 'GLOBAL' aggregation for MySQL.")
+	private boolean yearCounts = false;
+
+	@Parameter(names = "-progressInterval", description = "Seconds between two progress lines, 0 to only print the totals at the end")
+	private long progressInterval = 10;
+
 	@Parameter(names = "-constrainer", description = "Constraint for storing. Currently implemented: 'all' and 'adjectivenoun'.", converter = ConstraintStringConverter.class)
-	private Function<List<String>, Boolean> constrainer = e -> true;
+	private NgramConstraint constrainer = NgramConstraint.ALL;
+
+	@Parameter(names = "-vocabularyPrepass", description = "Collect and classify the distinct words of every file before loading it, such that words are only checked once")
+	private boolean vocabularyPrepass = false;
+
+	@Parameter(names = "-vocabularyPrefix", description = "Prefix of the 1-gram files in the folder whose classified vocabulary is used by all files")
+	private String vocabularyPrefix = null;
+
+	@Parameter(names = "-sketchPrepass", description = "Estimate the count of every n-gram in a count sketch before loading a file, such that n-grams below the minimum occurrences are skipped before checking their words")
+	private boolean sketchPrepass = false;
+
+	@Parameter(names = "-sketchMemory", description = "Megabytes of counters of the count sketch of a file, or of all files for the 'GLOBAL' aggregation")
+	private long sketchMemory = 64;
+
+	@Parameter(names = "-taggerThreads", description = "Amount of threads tagging the words of a pipeline batch at once, sharing one tagger model")
+	private int taggerThreads = 1;
+
+	@Parameter(names = "-posLexicon", description = "Part-of-speech lexicon built by NgramPosLexiconBuilder, consulted before tagging words", converter = FileConverter.class)
+	private File posLexicon = null;
 
 	@Parameter(names = "-allowedRegex", description = "Constrains every words of a stored tuple to adhere to these regex. Implemented shortcut handles: 'all', 'allwords' and 'lowercase'", converter = WordRegexStringConverter.class)
 	private String allowedRegex = WordRegexStringConverter.LOWERCASE_WORDS;
 
+	@Parameter(names = "-resume", description = "Save the progress of every file in the database, and continue files from their last checkpoint")
+	private boolean resume = false;
+
+	@Parameter(names = "-checkpointEvery", description = "Amount of written n-grams between two checkpoints when resuming is enabled")
+	private int checkpointEvery = 100000;
+
+	@Parameter(names = "-sink", description = "Where the n-grams are written to: 'MYSQL', 'INDEX' for a memory-mapped index, 'RUNS' for a sorted binary file per file, 'TSV' for a text file per file, or 'NULL' to only count them")
+	private SinkType sink = SinkType.MYSQL;
+
+	@Parameter(names = "-output", description = "Folder of the files written by the 'INDEX', 'RUNS' and 'TSV' sinks, or the index file", converter = FileConverter.class)
+	private File output = new File(".");
+
 	/*-********************************************-*
 	 *  Database
 	*-********************************************-*/
@@ -57,6 +127,89 @@ public class ConstrainedLoaderArguments {
 	@Parameter(names = "-sqlDb", description = "Database of the SQL database")
 	private String databaseName = "ngram";
 
+	@Parameter(names = "-schema", description = "Layout of the n-gram tables: 'WORDS' stores the words in every row, 'IDS' stores them once in a words table and only their ids in the n-gram tables")
+	private Schema schema = Schema.WORDS;
+
+	@Parameter(names = "-staging", description = "Load into a new staging table without secondary indexes, which is indexed and swapped with the n-gram table once every file is loaded")
+	private boolean staging = false;
+
+	@Parameter(names = "-stagingPartitions", description = "Amount of partitions of the staging table by the hash of the first word, 0 to not partition it")
+	private int stagingPartitions = 0;
+
+	@Parameter(names = "-disableChecks", description = "Turn off the foreign key checks and, for the 'WORDS' layout, the unique checks while loading, which then needs -staging and the 'GLOBAL' aggregation such that every n-gram is inserted once.")
+	private boolean disableChecks = false;
+
+	@Parameter(names = "-insertMode", description = "How rows are sent to the SQL database: 'AUTO', 'BATCH' or 'INFILE'. 'AUTO' uses LOAD DATA LOCAL INFILE if the server allows it.")
+	private InsertMode insertMode = InsertMode.AUTO;
+
+	@Parameter(names = "-batchSize", description = "Amount of rows sent to the SQL database in one batch")
+	private int batchSize = 1000;
+
+	@Parameter(names = "-infileChunkSize", description = "Amount of rows sent to the SQL database in one LOAD DATA LOCAL INFILE statement")
+	private int infileChunkSize = 100000;
+
+	@Parameter(names = "-commitEvery", description = "Amount of batches (or infile chunks) per transaction, 0 to use autocommit")
+	private int commitEvery = 10;
+
+	@Parameter(names = "-writers", description = "Amount of SQL connections writing the n-grams of a file concurrently, each writing the n-grams whose words hash to it, with its own batches and transactions")
+	private int writers = 1;
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Sizes
+	*-********************************************-*/
+
+	/**
+	 * @return the arguments of every size of the n-grams to load: these
+	 *         arguments if only -n is given, or a copy for every size of -ns
+	 *         otherwise
+	 * @throws IllegalArgumentException
+	 *             if several sizes would read the same files or write the same
+	 *             index file
+	 */
+	public List<ConstrainedLoaderArguments> getArgumentsPerN() {
+		List<ConstrainedLoaderArguments> arguments = new ArrayList<>();
+		if (ns.isEmpty()) {
+			arguments.add(this);
+			return arguments;
+		}
+		if (!ends.isEmpty() && ends.size() != ns.size()) {
+			throw new IllegalArgumentException("Expected an end index for each of the sizes " + ns);
+		}
+		if (ns.size() > 1) {
+			if (!folder.getPath().contains(N_PLACEHOLDER) && !filePrefix.contains(N_PLACEHOLDER)) {
+				throw new IllegalArgumentException("Expected " + N_PLACEHOLDER
+						+ " in the folder or the file prefix to find the files of each of the sizes " + ns);
+			}
+			if (sink == SinkType.INDEX && !output.isDirectory() && !output.getPath().contains(N_PLACEHOLDER)) {
+				throw new IllegalArgumentException("Expected " + N_PLACEHOLDER
+						+ " in the index file to write an index for each of the sizes " + ns);
+			}
+		}
+		for (int i = 0; i < ns.size(); i++) {
+			arguments.add(forN(ns.get(i), ends.isEmpty() ? end : ends.get(i)));
+		}
+		return arguments;
+	}
+
+	private ConstrainedLoaderArguments forN(int n, int end) {
+		ConstrainedLoaderArguments arguments;
+		try {
+			arguments = (ConstrainedLoaderArguments) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		arguments.n = n;
+		arguments.end = end;
+		arguments.ns = new ArrayList<>();
+		arguments.ends = new ArrayList<>();
+		arguments.folder = new File(folder.getPath().replace(N_PLACEHOLDER, Integer.toString(n)));
+		arguments.filePrefix = filePrefix.replace(N_PLACEHOLDER, Integer.toString(n));
+		arguments.output = new File(output.getPath().replace(N_PLACEHOLDER, Integer.toString(n)));
+		return arguments;
+	}
+
 	/*-********************************************-*/
 
 	/*-********************************************-*
@@ -95,14 +248,90 @@ public class ConstrainedLoaderArguments {
 		return end;
 	}
 
-	public Function<List<String>, Boolean> getConstrainer() {
+	public int getThreads() {
+		return threads;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getPipelineBatchSize() {
+		return pipelineBatchSize;
+	}
+
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	public long getAggregationMemory() {
+		return aggregationMemory;
+	}
+
+	public File getSpillFolder() {
+		return spillFolder;
+	}
+
+	public boolean isYearCounts() {
+		return yearCounts;
+	}
+
+	public long getProgressInterval() {
+		return progressInterval;
+	}
+
+	public NgramConstraint getConstrainer() {
 		return constrainer;
 	}
 
+	public boolean isVocabularyPrepass() {
+		return vocabularyPrepass;
+	}
+
+	public String getVocabularyPrefix() {
+		return vocabularyPrefix;
+	}
+
+	public boolean isSketchPrepass() {
+		return sketchPrepass;
+	}
+
+	public long getSketchMemory() {
+		return sketchMemory;
+	}
+
+	public int getTaggerThreads() {
+		return taggerThreads;
+	}
+
+	public File getPosLexicon() {
+		return posLexicon;
+	}
+
 	public String getAllowedRegex() {
 		return allowedRegex;
 	}
 
+	public boolean isResume() {
+		return resume;
+	}
+
+	public int getCheckpointEvery() {
+		return checkpointEvery;
+	}
+
+	public SinkType getSink() {
+		return sink;
+	}
+
+	public File getOutput() {
+		return output;
+	}
+
 	public String getHost() {
 		return host;
 	}
@@ -123,6 +352,42 @@ public class ConstrainedLoaderArguments {
 		return databaseName;
 	}
 
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public boolean isStaging() {
+		return staging;
+	}
+
+	public int getStagingPartitions() {
+		return stagingPartitions;
+	}
+
+	public boolean isDisableChecks() {
+		return disableChecks;
+	}
+
+	public InsertMode getInsertMode() {
+		return insertMode;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getInfileChunkSize() {
+		return infileChunkSize;
+	}
+
+	public int getCommitEvery() {
+		return commitEvery;
+	}
+
+	public int getWriters() {
+		return writers;
+	}
+
 	/*-********************************************-*/
 
 }
@@ -1,5 +1,6 @@
 package be.thomaswinters.googlengrams.arguments;
 
+import be.thomaswinters.pos.PosLexicon;
 import be.thomaswinters.pos.WordTypeCalculator;
 import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.ParameterException;
@@ -7,27 +8,38 @@ import edu.mit.jwi.Dictionary;
 import edu.mit.jwi.item.POS;
 import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.function.Function;
+import java.util.Map;
+import java.util.Set;
 
-public class ConstraintStringConverter implements IStringConverter<Function<List<String>, Boolean>> {
+public class ConstraintStringConverter implements IStringConverter<NgramConstraint> {
 
-    private static final Dictionary dictionary = new Dictionary(ClassLoader.getSystemResource("dict/"));
+    private static final String TAGGER_MODEL = "stanford-pos/english-bidirectional-distsim.tagger";
+
+    private static final Dictionary dictionary = createDictionary();
 
     /*-********************************************-*
      *  WordTypes
      *-********************************************-*/
-    private static final MaxentTagger tagger = new MaxentTagger("stanford-pos/english-bidirectional-distsim.tagger");
-    private static final WordTypeCalculator wordTypeCalculator = new WordTypeCalculator(dictionary, tagger);
+    private static final MaxentTagger tagger = new MaxentTagger(TAGGER_MODEL);
+    private static final WordTypeCalculator wordTypeCalculator = new WordTypeCalculator(dictionary, tagger,
+            ConstraintStringConverter::createDictionary, WordTypeCalculator.DEFAULT_CACHE_SIZE);
 
-    static {
+    private static Dictionary createDictionary() {
+        Dictionary dictionary = new Dictionary(ClassLoader.getSystemResource("dict/"));
         try {
             dictionary.open();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return dictionary;
+    }
+
+    public static WordTypeCalculator getWordTypeCalculator() {
+        return wordTypeCalculator;
     }
 
     public static boolean isWordOfType(POS partOfSpeech, String word) {
@@ -41,14 +53,66 @@ public class ConstraintStringConverter implements IStringConverter<Function<List
         return isWordOfType(POS.ADJECTIVE, word1) && isWordOfType(POS.NOUN, word2);
     }
 
+    /**
+     * Classifies the first two words of all n-grams at once, using all tagging
+     * threads
+     *
+     * @param ngrams
+     */
+    public static void classifyAdjectiveNounCombinations(Collection<List<String>> ngrams) {
+        Set<String> words = new HashSet<>();
+        for (List<String> ngram : ngrams) {
+            words.add(ngram.get(0));
+            words.add(ngram.get(1));
+        }
+        wordTypeCalculator.getWordTypes(words);
+    }
+
+    /**
+     * Calculates the word type masks of all words at once, using all tagging
+     * threads
+     *
+     * @param words
+     * @return
+     */
+    public static int[] getWordTypeMasks(List<String> words) {
+        Map<String, Collection<POS>> types = wordTypeCalculator.getWordTypes(words);
+        int[] masks = new int[words.size()];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = PosLexicon.toMask(types.get(words.get(i)));
+        }
+        return masks;
+    }
+
     @Override
-    public Function<List<String>, Boolean> convert(String value) {
+    public NgramConstraint convert(String value) {
 
         switch (value.toLowerCase()) {
             case "all":
-                return e -> true;
+                return NgramConstraint.ALL;
             case "adjectivenoun":
-                return ConstraintStringConverter::isAdjectiveNounCombination;
+                return new WordTypeConstraint() {
+                    @Override
+                    public Boolean apply(List<String> words) {
+                        return isAdjectiveNounCombination(words);
+                    }
+
+                    @Override
+                    public void prepare(Collection<List<String>> upcoming) {
+                        classifyAdjectiveNounCombinations(upcoming);
+                    }
+
+                    @Override
+                    public boolean acceptsWordTypes(int[] wordTypeMasks) {
+                        return (wordTypeMasks[0] & PosLexicon.toMask(POS.ADJECTIVE)) != 0
+                                && (wordTypeMasks[1] & PosLexicon.toMask(POS.NOUN)) != 0;
+                    }
+
+                    @Override
+                    public int[] getWordTypeMasks(List<String> words) {
+                        return ConstraintStringConverter.getWordTypeMasks(words);
+                    }
+                };
             default:
                 throw new ParameterException("Unknown constraint type '" + value + "'.");
         }
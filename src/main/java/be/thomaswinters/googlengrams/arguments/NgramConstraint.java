@@ -0,0 +1,46 @@
+package be.thomaswinters.googlengrams.arguments;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Constraint deciding whether an n-gram should be stored. Constraints that are
+ * expensive per word can prepare themselves for a block of upcoming n-grams at
+ * once.
+ */
+@FunctionalInterface
+public interface NgramConstraint extends Function<List<String>, Boolean> {
+
+    /**
+     * Constraint accepting every n-gram
+     */
+    NgramConstraint ALL = new NgramConstraint() {
+        @Override
+        public Boolean apply(List<String> words) {
+            return true;
+        }
+
+        @Override
+        public boolean acceptsAll() {
+            return true;
+        }
+    };
+
+    /**
+     * Called with n-grams that will soon be passed to this constraint
+     *
+     * @param upcoming
+     */
+    default void prepare(Collection<List<String>> upcoming) {
+    }
+
+    /**
+     * @return whether this constraint accepts every n-gram, such that it does not
+     * need to be applied
+     */
+    default boolean acceptsAll() {
+        return false;
+    }
+
+}
@@ -0,0 +1,30 @@
+package be.thomaswinters.googlengrams.arguments;
+
+import java.util.List;
+
+/**
+ * Constraint that only depends on the word types of the words of an n-gram,
+ * such that it can be decided on word types calculated once per distinct word,
+ * e.g. by a vocabulary prepass.
+ */
+public interface WordTypeConstraint extends NgramConstraint {
+
+    /**
+     * Decides on an n-gram using the word type masks of its words, as calculated
+     * by {@link #getWordTypeMasks(List)}
+     *
+     * @param wordTypeMasks
+     * @return
+     */
+    boolean acceptsWordTypes(int[] wordTypeMasks);
+
+    /**
+     * Calculates the word types of all words at once, as masks created by
+     * {@link be.thomaswinters.pos.PosLexicon#toMask(java.util.Collection)}
+     *
+     * @param words
+     * @return
+     */
+    int[] getWordTypeMasks(List<String> words);
+
+}
@@ -0,0 +1,192 @@
+package be.thomaswinters.pos;
+
+import edu.mit.jwi.item.POS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Memory-mapped lexicon storing the part-of-speech of words as a bitmask. It
+ * is built once using a {@link WordTypeCalculator}, such that later runs can
+ * look up words instead of tagging them again.
+ *
+ * The file contains a header, the sorted offsets of the words, one mask byte
+ * per word and the UTF-8 bytes of all words, sorted by their bytes.
+ *
+ * @author Thomas Winters
+ *
+ */
+public class PosLexicon {
+
+	private static final int MAGIC = 0x504F534C;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int masksStart;
+	private final int wordsStart;
+
+	private PosLexicon(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a part-of-speech lexicon");
+		}
+		this.size = buffer.getInt(8);
+		this.masksStart = HEADER_SIZE + 4 * (size + 1);
+		this.wordsStart = masksStart + size;
+	}
+
+	/**
+	 * Memory-maps the lexicon stored in the given file
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static PosLexicon open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new PosLexicon(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/*-********************************************-*
+	 *  Lookup
+	*-********************************************-*/
+
+	/**
+	 * @param word
+	 * @return the part-of-speech mask of the word, or -1 if it is not in the
+	 *         lexicon
+	 */
+	public int getMask(String word) {
+		byte[] key = word.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compareTo(middle, key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return buffer.get(masksStart + middle);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param word
+	 * @return the word types of the word, if it is in the lexicon
+	 */
+	public Optional<Collection<POS>> getWordTypes(String word) {
+		int mask = getMask(word);
+		return mask < 0 ? Optional.empty() : Optional.of(toPOS(mask));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int compareTo(int index, byte[] key) {
+		int start = wordsStart + buffer.getInt(HEADER_SIZE + 4 * index);
+		int end = wordsStart + buffer.getInt(HEADER_SIZE + 4 * (index + 1));
+		int length = Math.min(end - start, key.length);
+		for (int i = 0; i < length; i++) {
+			int comparison = Integer.compare(buffer.get(start + i) & 0xFF, key[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(end - start, key.length);
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Masks
+	*-********************************************-*/
+
+	public static int toMask(Collection<POS> types) {
+		int mask = 0;
+		for (POS pos : types) {
+			mask |= toMask(pos);
+		}
+		return mask;
+	}
+
+	public static int toMask(POS pos) {
+		return 1 << pos.ordinal();
+	}
+
+	public static Collection<POS> toPOS(int mask) {
+		Set<POS> result = EnumSet.noneOf(POS.class);
+		for (POS pos : POS.values()) {
+			if ((mask & toMask(pos)) != 0) {
+				result.add(pos);
+			}
+		}
+		return result;
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Writing
+	*-********************************************-*/
+
+	/**
+	 * Writes a lexicon containing the given words with their types according to
+	 * the calculator, including its blacklist and whitelist
+	 *
+	 * @param file
+	 * @param words
+	 * @param calculator
+	 */
+	public static void write(File file, Collection<String> words, WordTypeCalculator calculator)
+			throws IOException {
+		List<byte[]> sorted = new ArrayList<>(words.size());
+		for (String word : new HashSet<>(words)) {
+			sorted.add(word.getBytes(StandardCharsets.UTF_8));
+		}
+		sorted.sort(PosLexicon::compareBytes);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sorted.size());
+			int offset = 0;
+			for (byte[] word : sorted) {
+				out.writeInt(offset);
+				offset += word.length;
+			}
+			out.writeInt(offset);
+			for (byte[] word : sorted) {
+				out.writeByte(toMask(calculator.getWordTypes(new String(word, StandardCharsets.UTF_8))));
+			}
+			for (byte[] word : sorted) {
+				out.write(word);
+			}
+		}
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int comparison = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	/*-********************************************-*/
+
+}
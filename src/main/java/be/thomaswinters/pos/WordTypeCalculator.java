@@ -2,6 +2,7 @@ package be.thomaswinters.pos;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import edu.mit.jwi.Dictionary;
@@ -14,6 +15,10 @@ import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -27,6 +32,7 @@ public class WordTypeCalculator {
 
 	private final Dictionary dictionary;
 	private final MaxentTagger tagger;
+	private volatile PosLexicon lexicon;
 
 	private static final Map<POS, Set<String>> BLACKLIST;
 	static {
@@ -120,59 +126,184 @@ public class WordTypeCalculator {
 		WHITELIST = whitelistB.build();
 	}
 
-	public WordTypeCalculator(Dictionary dictionary, MaxentTagger tagger) {
+	public static final int DEFAULT_CACHE_SIZE = 100000;
+
+	private final ThreadLocal<Dictionary> workerDictionary;
+	private ExecutorService workers;
+	private volatile int threads = 1;
+
+	/**
+	 * Creates a calculator that uses the given dictionary and tagger for single
+	 * words, and asks the supplier for a separate dictionary for every thread
+	 * tagging a batch of words. The tagger model is only loaded once and shared by
+	 * all threads, as tagging does not modify it.
+	 */
+	public WordTypeCalculator(Dictionary dictionary, MaxentTagger tagger, Supplier<Dictionary> dictionaries,
+			int cacheSize) {
 		this.dictionary = dictionary;
 		this.tagger = tagger;
+		this.workerDictionary = ThreadLocal.withInitial(dictionaries);
+		this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build();
+	}
+
+	public WordTypeCalculator(Dictionary dictionary, MaxentTagger tagger) {
+		this(dictionary, tagger, () -> dictionary, DEFAULT_CACHE_SIZE);
 	}
 
-	private final Cache<String, Collection<POS>> cache = CacheBuilder.newBuilder().maximumSize(100).build();
+	private final Cache<String, Collection<POS>> cache;
 
 	/**
-	 * Uses WordNet to detect the Part-of-Speech of a word, as well as the whitelist
-	 * 
-	 * @param word
-	 * @return
+	 * Sets the amount of threads tagging batches of words, each using its own
+	 * dictionary and the shared tagger
+	 *
+	 * @param threads
 	 */
-	public Collection<POS> getWordTypes(String word) {
-		try {
-			return cache.get(word, () -> {
-				Set<POS> result = new HashSet<>(4);
+	public synchronized void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+	}
 
-				if (word.trim().isEmpty()) {
-					return result;
-				}
+	private synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "word-type-calculator");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return workers;
+	}
 
-				for (POS pos : POS.values()) {
-					IIndexWord wd = dictionary.getIndexWord(word, pos);
-					if (wd != null && !BLACKLIST.get(pos).contains(word)) {
-						result.add(pos);
-					}
-				}
+	/**
+	 * Makes this calculator look up words in a precomputed lexicon before tagging
+	 * them
+	 *
+	 * @param lexicon
+	 */
+	public void setLexicon(PosLexicon lexicon) {
+		this.lexicon = lexicon;
+		cache.invalidateAll();
+	}
 
-				Optional<POS> stanfordPOS = tagWordWithStanfordPOS(word);
-				if (stanfordPOS.isPresent() && !BLACKLIST.get(stanfordPOS.get()).contains(word)) {
-					result.add(stanfordPOS.get());
-				}
+	/**
+	 * @return hits and misses of the cache of word types
+	 */
+	public CacheStats getCacheStats() {
+		return cache.stats();
+	}
 
-				result.addAll(
-						WHITELIST.entrySet().stream().filter(e -> e.getValue().contains(word.trim().toLowerCase()))
-								.map(e -> e.getKey()).collect(Collectors.toList()));
+	/**
+	 * Forgets the word types of all words looked up so far
+	 */
+	public void clearCache() {
+		cache.invalidateAll();
+	}
 
-				return result;
-			});
+	/**
+	 * Uses the lexicon, or WordNet and the Stanford tagger to detect the
+	 * Part-of-Speech of a word, as well as the whitelist
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public Collection<POS> getWordTypes(String word) {
+		try {
+			return cache.get(word, () -> calculateWordTypes(word, dictionary, tagger));
 		} catch (ExecutionException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Calculates a tag based on the Stanford POS tagger
-	 * 
-	 * @param word
+	 * Calculates the word types of all words at once. Words that are not cached
+	 * yet are spread over the tagging threads.
+	 *
+	 * @param words
 	 * @return
 	 */
-	private Optional<POS> tagWordWithStanfordPOS(String word) {
-		return convertToWordnetPOS(tagWordWithStanford(word));
+	public Map<String, Collection<POS>> getWordTypes(Collection<String> words) {
+		Map<String, Collection<POS>> result = new HashMap<>();
+		List<String> unseen = new ArrayList<>();
+		for (String word : new HashSet<>(words)) {
+			Collection<POS> cached = cache.getIfPresent(word);
+			if (cached != null) {
+				result.put(word, cached);
+			} else {
+				unseen.add(word);
+			}
+		}
+		if (threads == 1) {
+			for (String word : unseen) {
+				result.put(word, getWordTypes(word));
+			}
+			return result;
+		}
+
+		ExecutorService workers = getWorkers();
+		int chunkSize = (unseen.size() + threads - 1) / threads;
+		List<Future<Map<String, Collection<POS>>>> futures = new ArrayList<>();
+		for (int i = 0; i < unseen.size(); i += chunkSize) {
+			List<String> chunk = unseen.subList(i, Math.min(unseen.size(), i + chunkSize));
+			futures.add(workers.submit(() -> {
+				Map<String, Collection<POS>> types = new HashMap<>();
+				for (String word : chunk) {
+					types.put(word, calculateWordTypes(word, workerDictionary.get(), tagger));
+				}
+				return types;
+			}));
+		}
+		try {
+			for (Future<Map<String, Collection<POS>>> future : futures) {
+				Map<String, Collection<POS>> types = future.get();
+				cache.putAll(types);
+				result.putAll(types);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return result;
+	}
+
+	private Collection<POS> calculateWordTypes(String word, Dictionary dictionary, MaxentTagger tagger) {
+		Set<POS> result = new HashSet<>(4);
+
+		if (word.trim().isEmpty()) {
+			return result;
+		}
+
+		PosLexicon lexicon = this.lexicon;
+		if (lexicon != null) {
+			Optional<Collection<POS>> known = lexicon.getWordTypes(word);
+			if (known.isPresent()) {
+				return known.get();
+			}
+		}
+
+		// The dictionary might be shared by several threads
+		synchronized (dictionary) {
+			for (POS pos : POS.values()) {
+				IIndexWord wd = dictionary.getIndexWord(word, pos);
+				if (wd != null && !BLACKLIST.get(pos).contains(word)) {
+					result.add(pos);
+				}
+			}
+		}
+
+		Optional<POS> stanfordPOS = convertToWordnetPOS(tagWordWithStanford(word, tagger));
+		if (stanfordPOS.isPresent() && !BLACKLIST.get(stanfordPOS.get()).contains(word)) {
+			result.add(stanfordPOS.get());
+		}
+
+		result.addAll(WHITELIST.entrySet().stream().filter(e -> e.getValue().contains(word.trim().toLowerCase()))
+				.map(e -> e.getKey()).collect(Collectors.toList()));
+
+		return result;
 	}
 
 	/**
@@ -182,7 +313,7 @@ public class WordTypeCalculator {
 	 * @param word
 	 * @return
 	 */
-	private String tagWordWithStanford(String word) {
+	private String tagWordWithStanford(String word, MaxentTagger tagger) {
 		List<List<HasWord>> sentences = MaxentTagger.tokenizeText(new StringReader(word));
 		List<HasWord> sentence = sentences.get(0);
 		List<TaggedWord> tSentence = tagger.tagSentence(sentence);
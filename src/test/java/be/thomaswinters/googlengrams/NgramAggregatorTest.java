@@ -0,0 +1,199 @@
+package be.thomaswinters.googlengrams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the aggregator sums and sorts the same way, whether it keeps
+ * everything in memory or spills and merges runs
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramAggregatorTest {
+
+	@Rule
+	public TemporaryFolder spillFolder = new TemporaryFolder();
+
+	/*-********************************************-*
+	 *  Sorting and summing
+	*-********************************************-*/
+
+	@Test
+	public void testSortsAndSumsInMemory() {
+		NgramAggregator aggregator = new NgramAggregator(1 << 24, spillFolder.getRoot());
+		Map<List<String>, Long> expected = addRandom(aggregator, 5000, 300, new Random(1));
+		assertEquals(0, aggregator.getAmountOfRuns());
+
+		assertEquals(sorted(expected), finish(aggregator));
+	}
+
+	@Test
+	public void testSortsSortedAndReversedInput() {
+		// Already ordered input is the worst case of a quicksort without a good pivot
+		NgramAggregator aggregator = new NgramAggregator(1 << 24, spillFolder.getRoot());
+		Map<List<String>, Long> expected = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			List<String> ngram = Arrays.asList(String.format("w%05d", i), String.format("x%05d", 2000 - i));
+			aggregator.add(ngram, i + 1);
+			expected.put(ngram, (long) i + 1);
+		}
+		for (int i = 2000; i > 0; i--) {
+			List<String> ngram = Arrays.asList(String.format("v%05d", i), "y");
+			aggregator.add(ngram, i);
+			expected.put(ngram, (long) i);
+		}
+
+		assertEquals(sorted(expected), finish(aggregator));
+	}
+
+	@Test
+	public void testSpillsAndMergesRuns() {
+		NgramAggregator aggregator = new NgramAggregator(2048, spillFolder.getRoot());
+		Map<List<String>, Long> expected = addRandom(aggregator, 20000, 1000, new Random(2));
+		// More runs than can be merged at once, such that groups of runs are merged first
+		assertTrue(aggregator.getAmountOfRuns() > 64);
+
+		assertEquals(sorted(expected), finish(aggregator));
+	}
+
+	@Test
+	public void testSumsKeysOccurringInSeveralRuns() {
+		NgramAggregator aggregator = new NgramAggregator(256, spillFolder.getRoot());
+		for (int i = 0; i < 100; i++) {
+			aggregator.add(Arrays.asList("the", "cat"), 3);
+			aggregator.add(Arrays.asList("word" + i, "filler"), 1);
+		}
+		assertTrue(aggregator.getAmountOfRuns() > 1);
+
+		List<Map.Entry<List<String>, Long>> result = finish(aggregator);
+		assertEquals(101, result.size());
+		assertTrue(result.contains(new AbstractMap.SimpleEntry<>(Arrays.asList("the", "cat"), 300L)));
+	}
+
+	@Test
+	public void testMergesRunsOfOtherAggregators() {
+		NgramAggregator aggregator = new NgramAggregator(1 << 20, spillFolder.getRoot());
+		NgramAggregator first = new NgramAggregator(1 << 20, spillFolder.getRoot());
+		NgramAggregator second = new NgramAggregator(1 << 20, spillFolder.getRoot());
+		Map<List<String>, Long> expected = addRandom(first, 3000, 200, new Random(3));
+		addRandom(second, 3000, 200, new Random(4)).forEach((ngram, count) -> expected.merge(ngram, count, Long::sum));
+
+		aggregator.addRuns(first);
+		aggregator.addRuns(second);
+
+		assertEquals(2, aggregator.getAmountOfRuns());
+		assertEquals(sorted(expected), finish(aggregator));
+	}
+
+	@Test
+	public void testSortsWordsBeforeLongerWordsAndControlCharacters() {
+		NgramAggregator aggregator = new NgramAggregator(256, spillFolder.getRoot());
+		List<List<String>> ngrams = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("a", "a"),
+				Arrays.asList("a\u0001", "a"), Arrays.asList("ab", "a"), Arrays.asList("a!", "z"),
+				Arrays.asList("\u00e9", "a"), Arrays.asList("a", "\u0001"));
+		Map<List<String>, Long> expected = new HashMap<>();
+		for (List<String> ngram : ngrams) {
+			aggregator.add(ngram, 1);
+			expected.put(ngram, 1L);
+		}
+
+		assertEquals(sorted(expected), finish(aggregator));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsWordsWithNulCharacter() {
+		new NgramAggregator(1 << 20, spillFolder.getRoot()).add(Arrays.asList("a\u0000b", "c"), 1);
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Years
+	*-********************************************-*/
+
+	@Test
+	public void testKeepsYearsSorted() {
+		for (long memory : new long[] { 1 << 20, 128 }) {
+			NgramAggregator aggregator = new NgramAggregator(memory, spillFolder.getRoot(), true);
+			aggregator.add(record("b c", 2000, 1));
+			aggregator.add(record("a b", 1999, 2));
+			aggregator.add(record("a b", 300, 4));
+			aggregator.add(record("b c", 2000, 8));
+			aggregator.add(record("a b", 65536, 16));
+			aggregator.add(record("a b", 1999, 32));
+
+			List<String> result = new ArrayList<>();
+			aggregator.finish(record -> result.add(record.getWords() + " " + record.getYear() + " " + record.getCount()));
+			assertEquals(Arrays.asList("[a, b] 300 4", "[a, b] 1999 34", "[a, b] 65536 16", "[b, c] 2000 9"),
+					result);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRejectsNgramsWithoutYearWhenKeepingYears() {
+		new NgramAggregator(1 << 20, spillFolder.getRoot(), true).add(Arrays.asList("a", "b"), 1);
+	}
+
+	/*-********************************************-*/
+
+	/*-********************************************-*
+	 *  Helpers
+	*-********************************************-*/
+
+	private static Map<List<String>, Long> addRandom(NgramAggregator aggregator, int amount, int words,
+			Random random) {
+		Map<List<String>, Long> expected = new HashMap<>();
+		for (int i = 0; i < amount; i++) {
+			List<String> ngram = Arrays.asList("w" + random.nextInt(words), "x" + random.nextInt(words / 10));
+			long count = 1 + random.nextInt(100);
+			aggregator.add(ngram, count);
+			expected.merge(ngram, count, Long::sum);
+		}
+		return expected;
+	}
+
+	private static List<Map.Entry<List<String>, Long>> finish(NgramAggregator aggregator) {
+		List<Map.Entry<List<String>, Long>> result = new ArrayList<>();
+		aggregator.finish(record -> result.add(new AbstractMap.SimpleEntry<>(record.getWords(), record.getCount())));
+		return result;
+	}
+
+	/**
+	 * @return the entries sorted on the UTF-8 bytes of their words, word by word
+	 */
+	private static List<Map.Entry<List<String>, Long>> sorted(Map<List<String>, Long> counts) {
+		List<Map.Entry<List<String>, Long>> result = new ArrayList<>();
+		counts.forEach((ngram, count) -> result.add(new AbstractMap.SimpleEntry<>(ngram, count)));
+		result.sort((a, b) -> {
+			for (int i = 0; i < Math.min(a.getKey().size(), b.getKey().size()); i++) {
+				int comparison = NgramIndexWriter.compareBytes(a.getKey().get(i).getBytes(StandardCharsets.UTF_8),
+						b.getKey().get(i).getBytes(StandardCharsets.UTF_8));
+				if (comparison != 0) {
+					return comparison;
+				}
+			}
+			return Integer.compare(a.getKey().size(), b.getKey().size());
+		});
+		return result;
+	}
+
+	static NgramRecord record(String words, int year, long count) {
+		byte[] bytes = words.getBytes(StandardCharsets.UTF_8);
+		NgramRecord record = new NgramRecord();
+		record.setWords(ByteBuffer.wrap(bytes), 0, bytes.length, (byte) ' ');
+		record.setYear(year);
+		record.setCount(count);
+		return record;
+	}
+
+	/*-********************************************-*/
+
+}
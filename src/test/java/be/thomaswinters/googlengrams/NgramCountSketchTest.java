@@ -0,0 +1,107 @@
+package be.thomaswinters.googlengrams;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the estimates of the count-min sketch are never below the real
+ * counts, even when most n-grams share their counters
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramCountSketchTest {
+
+	@Test
+	public void testNeverEstimatesTooLow() {
+		// 64 counters per row for thousands of n-grams, such that all of them collide
+		NgramCountSketch sketch = new NgramCountSketch(64 * 4 * NgramCountSketch.DEPTH);
+		assertEquals(64, sketch.getWidth());
+		Map<String, Long> counts = new HashMap<>();
+		Random random = new Random(1);
+		long total = 0;
+		for (int i = 0; i < 50000; i++) {
+			String ngram = "w" + random.nextInt(5000) + " x" + random.nextInt(10);
+			long count = 1 + random.nextInt(1000);
+			add(sketch, ngram, count);
+			counts.merge(ngram, count, Long::sum);
+			total += count;
+		}
+
+		assertEquals(total, sketch.getTotal());
+		counts.forEach((ngram, count) -> assertTrue(ngram, estimate(sketch, ngram) >= count));
+	}
+
+	@Test
+	public void testEstimatesExactlyWithoutCollisions() {
+		NgramCountSketch sketch = new NgramCountSketch(1 << 20);
+		add(sketch, "the cat", 3);
+		add(sketch, "the dog", 5);
+		add(sketch, "the cat", 4);
+
+		assertEquals(7, estimate(sketch, "the cat"));
+		assertEquals(5, estimate(sketch, "the dog"));
+		assertEquals(0, estimate(sketch, "a bird"));
+	}
+
+	@Test
+	public void testEstimatesRecordsByTheirWords() {
+		NgramCountSketch sketch = new NgramCountSketch(1 << 20);
+		sketch.add(NgramAggregatorTest.record("the cat", 1990, 3));
+		sketch.add(NgramAggregatorTest.record("the cat", 1991, 4));
+
+		assertEquals(7, sketch.estimate(NgramAggregatorTest.record("the cat", 2000, 1)));
+		assertEquals(7, estimate(sketch, "the cat"));
+	}
+
+	@Test
+	public void testSumsSketchesWithoutEstimatingTooLow() {
+		NgramCountSketch first = new NgramCountSketch(64 * 4 * NgramCountSketch.DEPTH);
+		NgramCountSketch second = new NgramCountSketch(64 * 4 * NgramCountSketch.DEPTH);
+		Map<String, Long> counts = new HashMap<>();
+		Random random = new Random(2);
+		for (int i = 0; i < 20000; i++) {
+			String ngram = "w" + random.nextInt(2000);
+			long count = 1 + random.nextInt(100);
+			add(i % 2 == 0 ? first : second, ngram, count);
+			counts.merge(ngram, count, Long::sum);
+		}
+
+		first.add(second);
+
+		counts.forEach((ngram, count) -> assertTrue(ngram, estimate(first, ngram) >= count));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsSumOfDifferentSizes() {
+		new NgramCountSketch(1 << 10).add(new NgramCountSketch(1 << 12));
+	}
+
+	@Test
+	public void testSaturatesInsteadOfOverflowing() {
+		NgramCountSketch sketch = new NgramCountSketch(1 << 10);
+		add(sketch, "often", Integer.MAX_VALUE - 1);
+		add(sketch, "often", Integer.MAX_VALUE - 1);
+
+		assertEquals(Integer.MAX_VALUE, estimate(sketch, "often"));
+		sketch.add(sketch);
+		assertEquals(Integer.MAX_VALUE, estimate(sketch, "often"));
+	}
+
+	private static void add(NgramCountSketch sketch, String ngram, long count) {
+		byte[] bytes = ngram.getBytes(StandardCharsets.UTF_8);
+		sketch.add(bytes, 0, bytes.length, count);
+	}
+
+	private static long estimate(NgramCountSketch sketch, String ngram) {
+		byte[] bytes = ngram.getBytes(StandardCharsets.UTF_8);
+		return sketch.estimate(bytes, 0, bytes.length);
+	}
+
+}
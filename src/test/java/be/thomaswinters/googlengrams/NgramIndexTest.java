@@ -0,0 +1,144 @@
+package be.thomaswinters.googlengrams;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes an index with {@link NgramIndexWriter} and checks the lookups of
+ * {@link NgramIndex} against the added counts
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<List<String>, Long> expected = new HashMap<>();
+	private NgramIndex index;
+
+	@Before
+	public void writeIndex() throws IOException {
+		File file = folder.newFile("2grams.index");
+		// Little memory, such that the writer spills and merges runs
+		try (NgramIndexWriter writer = new NgramIndexWriter(file, 2, 4096, folder.getRoot())) {
+			Random random = new Random(1);
+			for (int i = 0; i < 5000; i++) {
+				List<String> ngram = Arrays.asList("w" + random.nextInt(100), "x" + random.nextInt(50));
+				long count = 1 + random.nextInt(1000);
+				writer.add(ngram, count);
+				expected.merge(ngram, count, Long::sum);
+			}
+			writer.add(Arrays.asList("caf\u00e9", "cr\u00e8me"), 7);
+			expected.put(Arrays.asList("caf\u00e9", "cr\u00e8me"), 7L);
+		}
+		index = NgramIndex.open(file);
+	}
+
+	@Test
+	public void testFindsEveryNgram() {
+		assertEquals(2, index.getN());
+		assertEquals(expected.size(), index.size());
+		expected.forEach((ngram, count) -> assertEquals(ngram.toString(), (long) count, index.getCount(ngram)));
+	}
+
+	@Test
+	public void testKeepsRowsSorted() {
+		List<String> previous = null;
+		for (long row = 0; row < index.size(); row++) {
+			List<String> words = index.getWords(row);
+			assertEquals((long) expected.get(words), index.getCount(row));
+			if (previous != null) {
+				assertTrue(previous + " before " + words, compare(previous, words) < 0);
+			}
+			previous = words;
+		}
+	}
+
+	@Test
+	public void testMissesUnknownNgrams() {
+		// Unknown words
+		assertEquals(0, index.getCount(Arrays.asList("unknown", "x1")));
+		assertEquals(0, index.getCount(Arrays.asList("w1", "unknown")));
+		assertEquals(-1, index.getWordId("unknown"));
+		// Known words that never occur together or in this order
+		assertEquals(0, index.getCount(Arrays.asList("x1", "w1")));
+		assertEquals(0, index.getCount(Arrays.asList("caf\u00e9", "x1")));
+		// Before the first and after the last word
+		assertEquals(0, index.getCount(Arrays.asList("", "")));
+		assertEquals(0, index.getCount(Arrays.asList("\uFFFF", "\uFFFF")));
+	}
+
+	@Test
+	public void testLooksUpWords() {
+		assertEquals(expected.keySet().stream().flatMap(List::stream).distinct().count(), index.getAmountOfWords());
+		for (int id = 0; id < index.getAmountOfWords(); id++) {
+			assertEquals(id, index.getWordId(index.getWord(id)));
+		}
+	}
+
+	@Test
+	public void testScansPrefixes() {
+		for (String first : Arrays.asList("w0", "w42", "w99", "caf\u00e9")) {
+			Map<List<String>, Long> withPrefix = new HashMap<>();
+			expected.forEach((ngram, count) -> {
+				if (ngram.get(0).equals(first)) {
+					withPrefix.put(ngram, count);
+				}
+			});
+
+			Map<List<String>, Long> scanned = new HashMap<>();
+			long rows = index.scan(Collections.singletonList(first),
+					row -> scanned.put(index.getWords(row), index.getCount(row)));
+
+			assertEquals(withPrefix.size(), rows);
+			assertEquals(withPrefix, scanned);
+			assertEquals(withPrefix.values().stream().mapToLong(Long::longValue).sum(),
+					index.getPrefixCount(Collections.singletonList(first)));
+		}
+	}
+
+	@Test
+	public void testScansFullAndEmptyPrefixes() {
+		assertEquals(index.size(), index.scan(Collections.emptyList(), row -> {
+		}));
+		assertEquals(1, index.scan(Arrays.asList("caf\u00e9", "cr\u00e8me"), row -> {
+		}));
+		assertEquals(0, index.scan(Collections.singletonList("unknown"), row -> {
+		}));
+		assertEquals(0, index.getPrefixCount(Collections.singletonList("x1")));
+	}
+
+	@Test
+	public void testKeepsFileWhenAbandoned() throws IOException {
+		File file = folder.newFile("abandoned.index");
+		NgramIndexWriter writer = new NgramIndexWriter(file, 1, 4096, folder.getRoot());
+		writer.add(Collections.singletonList("word"), 1);
+		writer.abandon();
+		writer.close();
+
+		assertEquals(0, file.length());
+	}
+
+	private static int compare(List<String> a, List<String> b) {
+		for (int i = 0; i < a.size(); i++) {
+			int comparison = NgramIndexWriter.compareBytes(a.get(i).getBytes(StandardCharsets.UTF_8),
+					b.get(i).getBytes(StandardCharsets.UTF_8));
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+}
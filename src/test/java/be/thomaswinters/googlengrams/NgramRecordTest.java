@@ -0,0 +1,90 @@
+package be.thomaswinters.googlengrams;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the words of a record decode like {@code new String(bytes, UTF_8)}
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramRecordTest {
+
+	@Test
+	public void testDecodesWords() {
+		NgramRecord record = record(bytes("caf\u00e9 \u20ac5 \uD83D\uDE00!"));
+
+		assertEquals(Arrays.asList("caf\u00e9", "\u20ac5", "\uD83D\uDE00!"), record.getWords());
+		assertEquals(4, record.getWord(0).length());
+	}
+
+	@Test
+	public void testResumesAtMalformedContinuationByte() {
+		// The 'A' breaks the 3 byte sequence and should not be swallowed
+		assertDecodesLikeString(0xE2, 0x82, 'A', 'b');
+		assertDecodesLikeString(0xC3, 'A');
+		assertDecodesLikeString(0xF0, 0x9F, 0x98, 'A');
+		assertDecodesLikeString(0xF0, 0x9F, 0xC3, 0xA9);
+	}
+
+	@Test
+	public void testReplacesInvalidSequences() {
+		// Lone continuation bytes, overlong forms, surrogates, above U+10FFFF and invalid first bytes
+		assertDecodesLikeString(0x80, 0xBF, 'a');
+		assertDecodesLikeString(0xC0, 0xAF);
+		assertDecodesLikeString(0xE0, 0x80, 0xAF);
+		assertDecodesLikeString(0xED, 0xA0, 0x80);
+		assertDecodesLikeString(0xF4, 0x90, 0x80, 0x80);
+		assertDecodesLikeString(0xF5, 0x80, 0xF8, 0xFF);
+	}
+
+	@Test
+	public void testReplacesTruncatedSequences() {
+		assertDecodesLikeString('a', 0xE2, 0x82);
+		assertDecodesLikeString('a', 0xF0, 0x9F, 0x98);
+		assertDecodesLikeString(0xC3);
+	}
+
+	@Test
+	public void testDecodesRandomBytesLikeString() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			byte[] bytes = new byte[1 + random.nextInt(8)];
+			random.nextBytes(bytes);
+			for (int j = 0; j < bytes.length; j++) {
+				if (bytes[j] == ' ') {
+					bytes[j] = 'x';
+				}
+			}
+			assertEquals(Arrays.toString(bytes), new String(bytes, StandardCharsets.UTF_8),
+					record(bytes).getWord(0).toString());
+		}
+	}
+
+	private static void assertDecodesLikeString(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		assertEquals(Arrays.toString(bytes), new String(bytes, StandardCharsets.UTF_8),
+				record(bytes).getWord(0).toString());
+	}
+
+	private static byte[] bytes(String words) {
+		return words.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static NgramRecord record(byte[] bytes) {
+		NgramRecord record = new NgramRecord();
+		record.setWords(ByteBuffer.wrap(bytes), 0, bytes.length, (byte) ' ');
+		return record;
+	}
+
+}
@@ -0,0 +1,103 @@
+package be.thomaswinters.googlengrams;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the compact encoding of the counts per year
+ *
+ * @author Thomas Winters
+ *
+ */
+public class NgramYearCountsTest {
+
+	@Test
+	public void testEncodesAndDecodesSortedAndMerged() {
+		NgramYearCounts counts = new NgramYearCounts();
+		counts.add(2008, 5);
+		counts.add(1800, 1);
+		counts.add(1950, 3);
+		counts.add(1800, 2);
+		counts.add(2008, 7);
+
+		NgramYearCounts decoded = NgramYearCounts.decode(counts.encode());
+
+		assertEquals(3, decoded.size());
+		assertEquals(1800, decoded.getYear(0));
+		assertEquals(3, decoded.getCount(0));
+		assertEquals(1950, decoded.getYear(1));
+		assertEquals(3, decoded.getCount(1));
+		assertEquals(2008, decoded.getYear(2));
+		assertEquals(12, decoded.getCount(2));
+	}
+
+	@Test
+	public void testEncodesVariableLengthEdges() {
+		// Differences and counts just below and above every extra byte of the encoding
+		int[] years = { 0, 127, 128, 255, 16383, 16384, 16511, 2097151, 2097152, Integer.MAX_VALUE };
+		long[] counts = { 0, 127, 128, 16383, 16384, 2097151, 2097152, 1L << 35, Long.MAX_VALUE, 1 };
+		NgramYearCounts yearCounts = new NgramYearCounts();
+		for (int i = 0; i < years.length; i++) {
+			yearCounts.add(years[i], counts[i]);
+		}
+
+		NgramYearCounts decoded = NgramYearCounts.decode(yearCounts.encode());
+
+		assertEquals(years.length, decoded.size());
+		for (int i = 0; i < years.length; i++) {
+			assertEquals(years[i], decoded.getYear(i));
+			assertEquals(counts[i], decoded.getCount(i));
+		}
+	}
+
+	@Test
+	public void testEncodesSmallValuesInOneByte() {
+		NgramYearCounts counts = new NgramYearCounts();
+		counts.add(100, 1);
+		counts.add(101, 127);
+
+		// Amount, then the difference and count of both years
+		assertEquals(5, counts.encode().length);
+	}
+
+	@Test
+	public void testEncodesNoYears() {
+		byte[] encoded = new NgramYearCounts().encode();
+
+		assertEquals(0, NgramYearCounts.decode(encoded).size());
+		assertEquals(0, NgramYearCounts.sum(encoded, Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testSumsYearsInRange() {
+		NgramYearCounts counts = new NgramYearCounts();
+		counts.add(1900, 1);
+		counts.add(1950, 10);
+		counts.add(2000, 100);
+		counts.add(2008, 1000);
+		byte[] encoded = counts.encode();
+
+		assertEquals(1111, NgramYearCounts.sum(encoded, 0, 3000));
+		assertEquals(110, NgramYearCounts.sum(encoded, 1950, 2000));
+		assertEquals(10, NgramYearCounts.sum(encoded, 1901, 1999));
+		assertEquals(1000, NgramYearCounts.sum(encoded, 2008, 2008));
+		assertEquals(0, NgramYearCounts.sum(encoded, 1901, 1949));
+		assertEquals(0, NgramYearCounts.sum(encoded, 2009, 3000));
+	}
+
+	@Test
+	public void testClearStartsOver() {
+		NgramYearCounts counts = new NgramYearCounts();
+		counts.add(2000, 1);
+		counts.add(1990, 1);
+		counts.clear();
+		counts.add(1800, 4);
+
+		NgramYearCounts decoded = NgramYearCounts.decode(counts.encode());
+		assertEquals(1, decoded.size());
+		assertEquals(1800, decoded.getYear(0));
+		assertEquals(4, decoded.getCount(0));
+	}
+
+}